@@ -0,0 +1,74 @@
+package com.quashbugs.magnus.model;
+
+import com.quashbugs.magnus.dto.MobileProjectInfoDTO;
+import com.quashbugs.magnus.dto.RepoFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MobileDetectorServiceBenchmark {
+
+    private static final String[] DIRECTORIES = {
+            "app/src/main/java/com/example/ui/",
+            "app/src/main/res/layout/",
+            "ios/App/Views/",
+            "ios/App/Models/",
+            "lib/widgets/",
+            "src/components/",
+            "src/screens/",
+            "docs/",
+            "test/",
+            "scripts/"
+    };
+
+    private static final String[] EXTENSIONS = {"java", "kt", "xml", "swift", "dart", "js", "tsx", "md", "json", "png"};
+
+    private static final String[] MARKERS = {
+            "app/src/main/AndroidManifest.xml",
+            "app/build.gradle",
+            "gradlew",
+            "ios/App/Info.plist",
+            "package.json",
+            "android/settings.gradle"
+    };
+
+    @Param({"1000", "50000", "500000"})
+    private int fileCount;
+
+    private MobileDetectorService detector;
+    private List<RepoFile> files;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        detector = new MobileDetectorService();
+        files = new ArrayList<>(fileCount);
+        Random random = new Random(42);
+
+        for (String marker : MARKERS) {
+            files.add(repoFile(marker));
+        }
+        while (files.size() < fileCount) {
+            String directory = DIRECTORIES[random.nextInt(DIRECTORIES.length)];
+            String extension = EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+            files.add(repoFile("module" + random.nextInt(200) + "/" + directory + "File" + files.size() + "." + extension));
+        }
+    }
+
+    @Benchmark
+    public MobileProjectInfoDTO analyzeMobileProject() {
+        return detector.analyzeMobileProject(files);
+    }
+
+    private static RepoFile repoFile(String path) {
+        return new RepoFile(path.substring(path.lastIndexOf('/') + 1), path, "file");
+    }
+}
@@ -0,0 +1,33 @@
+package com.quashbugs.magnus.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataEncryptionServiceBenchmark {
+
+    private DataEncryptionService dataEncryptionService;
+    private String accessToken;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        byte[] key = new byte[32];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte) i;
+        }
+        dataEncryptionService = new DataEncryptionService(Base64.getEncoder().encodeToString(key));
+        accessToken = "ghs_" + "a".repeat(36);
+    }
+
+    @Benchmark
+    public String encrypt() throws Exception {
+        return dataEncryptionService.encrypt(accessToken);
+    }
+}
@@ -0,0 +1,48 @@
+package com.quashbugs.magnus.service;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.util.ReflectionUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GithubServiceBenchmark {
+
+    private static final String WEBHOOK_SECRET = "benchmark-webhook-secret";
+
+    @Param({"1024", "65536", "1048576"})
+    private int payloadBytes;
+
+    private GithubService githubService;
+    private String payload;
+    private String signature;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        githubService = new GithubService(null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null);
+        Field secretField = ReflectionUtils.findField(GithubService.class, "webhookSecret");
+        ReflectionUtils.makeAccessible(secretField);
+        ReflectionUtils.setField(secretField, githubService, WEBHOOK_SECRET);
+
+        payload = "{\"action\":\"opened\",\"body\":\"" + "x".repeat(payloadBytes) + "\"}";
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(WEBHOOK_SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        signature = "sha256=" + HexFormat.of().formatHex(mac.doFinal(payload.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Benchmark
+    public boolean verifySignature() {
+        return githubService.verifySignature(payload, signature);
+    }
+}
@@ -0,0 +1,58 @@
+package com.quashbugs.magnus.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.quashbugs.magnus.dto.PrCallbackDataDTO;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WebhookServiceBenchmark {
+
+    @Param({"10", "100", "1000", "5000"})
+    private int testCaseCount;
+
+    private WebhookService webhookService;
+    private String payload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws JsonProcessingException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        webhookService = new WebhookService(null, null, null, objectMapper, null, null, null);
+
+        List<Map<String, Object>> testCases = new ArrayList<>(testCaseCount);
+        for (int i = 0; i < testCaseCount; i++) {
+            Map<String, Object> testCase = new HashMap<>();
+            testCase.put("title", "Verify checkout flow variant " + i);
+            testCase.put("steps", List.of("Open the app", "Add item " + i + " to the cart", "Complete checkout"));
+            testCases.add(testCase);
+        }
+
+        Map<String, Object> callback = new HashMap<>();
+        callback.put("status", "completed");
+        callback.put("analysis_id", "analysis-1");
+        callback.put("pr_analysis_id", "pr-analysis-1");
+        callback.put("pull_request_number", "42");
+        callback.put("summary", "Adds a new checkout flow");
+        callback.put("scopes", List.of("checkout", "cart", "payments"));
+        callback.put("scriptMediaRef", "media/script.json");
+        callback.put("test_cases", testCases);
+        callback.put("message", "Analysis completed");
+        payload = objectMapper.writeValueAsString(callback);
+    }
+
+    @Benchmark
+    public PrCallbackDataDTO parsePrCallbackData() throws JsonProcessingException {
+        return webhookService.parsePrCallbackData(payload);
+    }
+}
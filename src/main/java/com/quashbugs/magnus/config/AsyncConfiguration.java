@@ -2,39 +2,127 @@ package com.quashbugs.magnus.config;
 
 import org.springframework.aop.interceptor.AsyncUncaughtExceptionHandler;
 import org.springframework.aop.interceptor.SimpleAsyncUncaughtExceptionHandler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.scheduling.annotation.AsyncConfigurer;
 import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
 
 @Configuration
 @EnableAsync
+@EnableScheduling
 public class AsyncConfiguration implements AsyncConfigurer {
 
+    // "virtual" runs repo detection and the VCS fetches it fans out on virtual threads
+    @Value("${spring.vcs.execution.mode:platform}")
+    private String vcsExecutionMode;
+
+    private final ExecutorRegistry executorRegistry;
+
+    @Autowired
+    public AsyncConfiguration(ExecutorRegistry executorRegistry) {
+        this.executorRegistry = executorRegistry;
+    }
+
     @Bean
     public AsyncTaskExecutor asyncTaskExecutor() {
-        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-        executor.setCorePoolSize(5);
-        executor.setMaxPoolSize(10);
-        executor.setQueueCapacity(25);
-        executor.setThreadNamePrefix("AsyncExecutor-");
-        executor.initialize();
-        return executor;
+        return executorRegistry.create(ExecutorRegistry.PoolSpec.builder()
+                .name("async")
+                .threadNamePrefix("AsyncExecutor-")
+                .coreSize(5)
+                .maxSize(10)
+                .queueCapacity(25)
+                .build());
+    }
+
+    @Bean
+    public ThreadPoolTaskExecutor webhookTaskExecutor() {
+        return executorRegistry.create(ExecutorRegistry.PoolSpec.builder()
+                .name("webhook")
+                .threadNamePrefix("WebhookWorker-")
+                .coreSize(4)
+                .maxSize(8)
+                .queueCapacity(200)
+                .awaitTerminationSeconds(30)
+                .build());
+    }
+
+    @Bean
+    public AsyncTaskExecutor detectionTaskExecutor() {
+        if (useVirtualThreads()) {
+            return executorRegistry.createVirtual(ExecutorRegistry.PoolSpec.builder()
+                    .name("detection")
+                    .threadNamePrefix("DetectionWorker-")
+                    .maxSize(64)
+                    .awaitTerminationSeconds(30)
+                    .build());
+        }
+        return executorRegistry.create(ExecutorRegistry.PoolSpec.builder()
+                .name("detection")
+                .threadNamePrefix("DetectionWorker-")
+                .coreSize(8)
+                .maxSize(8)
+                .queueCapacity(8)
+                .awaitTerminationSeconds(30)
+                .build());
+    }
+
+    // The fetch pools fan out VCS API calls for a single detection run. On platform threads a full
+    // pool makes the submitting worker run the call itself; on virtual threads the pool size is the
+    // provider's budget of concurrent API calls and submitters wait for a free slot.
+    @Bean
+    public AsyncTaskExecutor githubFetchExecutor() {
+        return vcsFetchPool("github-fetch", "GithubFetch-", 32);
+    }
+
+    @Bean
+    public AsyncTaskExecutor gitlabFetchExecutor() {
+        return vcsFetchPool("gitlab-fetch", "GitlabFetch-", 16);
+    }
+
+    @Bean
+    public AsyncTaskExecutor bitbucketFetchExecutor() {
+        return vcsFetchPool("bitbucket-fetch", "BitbucketFetch-", 16);
+    }
+
+    @Bean
+    public ThreadPoolTaskExecutor sseDispatchExecutor() {
+        return executorRegistry.create(ExecutorRegistry.PoolSpec.builder()
+                .name("sse-dispatch")
+                .threadNamePrefix("SSEDispatcher-")
+                .coreSize(4)
+                .maxSize(4)
+                .queueCapacity(10000)
+                .build());
+    }
+
+    @Bean
+    public ThreadPoolTaskExecutor webSocketSendExecutor() {
+        return executorRegistry.create(ExecutorRegistry.PoolSpec.builder()
+                .name("websocket-send")
+                .threadNamePrefix("WebSocketSender-")
+                .coreSize(4)
+                .maxSize(4)
+                .queueCapacity(10000)
+                .build());
     }
 
     @Override
     public Executor getAsyncExecutor() {
-        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-        executor.setCorePoolSize(2);
-        executor.setMaxPoolSize(2);
-        executor.setQueueCapacity(500);
-        executor.setThreadNamePrefix("SSEExecutor-");
-        executor.initialize();
-        return executor;
+        return executorRegistry.create(ExecutorRegistry.PoolSpec.builder()
+                .name("async-default")
+                .threadNamePrefix("AsyncDefault-")
+                .coreSize(2)
+                .maxSize(2)
+                .queueCapacity(500)
+                .build());
     }
 
     @Override
@@ -42,4 +130,26 @@ public class AsyncConfiguration implements AsyncConfigurer {
         return new SimpleAsyncUncaughtExceptionHandler();
     }
 
+    private AsyncTaskExecutor vcsFetchPool(String name, String threadNamePrefix, int virtualBudget) {
+        if (useVirtualThreads()) {
+            return executorRegistry.createVirtual(ExecutorRegistry.PoolSpec.builder()
+                    .name(name)
+                    .threadNamePrefix(threadNamePrefix)
+                    .maxSize(virtualBudget)
+                    .build());
+        }
+        return executorRegistry.create(ExecutorRegistry.PoolSpec.builder()
+                .name(name)
+                .threadNamePrefix(threadNamePrefix)
+                .coreSize(10)
+                .maxSize(10)
+                .queueCapacity(100)
+                .rejectionPolicy(new ThreadPoolExecutor.CallerRunsPolicy())
+                .build());
+    }
+
+    private boolean useVirtualThreads() {
+        return "virtual".equalsIgnoreCase(vcsExecutionMode);
+    }
+
 }
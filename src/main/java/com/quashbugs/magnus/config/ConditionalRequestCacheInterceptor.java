@@ -0,0 +1,247 @@
+package com.quashbugs.magnus.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.lang.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Revalidates repeated GET requests with {@code If-None-Match} / {@code If-Modified-Since} and
+ * answers a 304 with the body cached from the last 200. Entries are keyed by credential, Accept
+ * header and URL, and evicted least-recently-used once the cached bodies exceed {@code maxBytes}.
+ * GitHub does not count 304s against the rate limit. Trees fetched by SHA never change and are not
+ * cached, and a body larger than one entry may take is streamed through rather than buffered.
+ */
+public class ConditionalRequestCacheInterceptor implements ClientHttpRequestInterceptor {
+
+    // A single response may not take more than this share of the cache
+    private static final int MAX_ENTRY_FRACTION = 8;
+    // Tree listings addressed by SHA are immutable and often large; revalidating them gains nothing
+    private static final Pattern TREE_BY_SHA = Pattern.compile("/git/trees/[0-9a-fA-F]{40}$");
+
+    private final long maxBytes;
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long cachedBytes;
+    private final Counter hitCounter;
+    private final Counter missCounter;
+
+    public ConditionalRequestCacheInterceptor(long maxBytes, MeterRegistry meterRegistry) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Cache size must be at least 1 byte");
+        }
+        this.maxBytes = maxBytes;
+        this.hitCounter = Counter.builder("vcs.http.cache")
+                .description("Conditional requests answered from the cache (hit) or with a new body (miss)")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.missCounter = Counter.builder("vcs.http.cache")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        Gauge.builder("vcs.http.cache.bytes", this, ConditionalRequestCacheInterceptor::cachedBytes)
+                .description("Size of the cached response bodies")
+                .register(meterRegistry);
+    }
+
+    @Override
+    @NonNull
+    public ClientHttpResponse intercept(@NonNull HttpRequest request,
+                                        @NonNull byte[] body,
+                                        @NonNull ClientHttpRequestExecution execution) throws IOException {
+        HttpHeaders requestHeaders = request.getHeaders();
+        // Leave requests alone that are not plain reads, already carry their own validators or
+        // ask for something that cannot change
+        if (request.getMethod() != HttpMethod.GET
+                || requestHeaders.containsKey(HttpHeaders.IF_NONE_MATCH)
+                || requestHeaders.containsKey(HttpHeaders.IF_MODIFIED_SINCE)
+                || TREE_BY_SHA.matcher(request.getURI().getRawPath()).find()) {
+            return execution.execute(request, body);
+        }
+
+        String key = CredentialDigest.of(requestHeaders.getFirst(HttpHeaders.AUTHORIZATION))
+                + " " + requestHeaders.getFirst(HttpHeaders.ACCEPT)
+                + " " + request.getURI();
+        CachedResponse cached = get(key);
+        if (cached != null) {
+            if (cached.etag != null) {
+                requestHeaders.set(HttpHeaders.IF_NONE_MATCH, cached.etag);
+            } else {
+                requestHeaders.set(HttpHeaders.IF_MODIFIED_SINCE, cached.lastModified);
+            }
+        }
+
+        ClientHttpResponse response = execution.execute(request, body);
+        HttpStatusCode status = response.getStatusCode();
+        if (status.value() == HttpStatus.NOT_MODIFIED.value() && cached != null) {
+            response.close();
+            hitCounter.increment();
+            return cached;
+        }
+        if (status.value() != HttpStatus.OK.value()) {
+            return response;
+        }
+
+        HttpHeaders responseHeaders = response.getHeaders();
+        String etag = responseHeaders.getETag();
+        String lastModified = responseHeaders.getFirst(HttpHeaders.LAST_MODIFIED);
+        if (etag == null && lastModified == null) {
+            return response;
+        }
+        missCounter.increment();
+
+        long maxEntryBytes = maxBytes / MAX_ENTRY_FRACTION;
+        if (responseHeaders.getContentLength() > maxEntryBytes) {
+            remove(key);
+            return response;
+        }
+        // Without a length, read at most one byte past the limit; a larger body is handed on unread
+        InputStream stream = response.getBody();
+        byte[] responseBody = stream.readNBytes((int) Math.min(maxEntryBytes + 1, Integer.MAX_VALUE - 8));
+        if (responseBody.length > maxEntryBytes) {
+            remove(key);
+            return new PartlyReadResponse(response, responseBody);
+        }
+        response.close();
+        HttpHeaders headers = new HttpHeaders();
+        headers.putAll(responseHeaders);
+        CachedResponse fresh = new CachedResponse(status, response.getStatusText(), headers, responseBody, etag, lastModified);
+        put(key, fresh);
+        return fresh;
+    }
+
+    private synchronized CachedResponse get(String key) {
+        return entries.get(key);
+    }
+
+    private synchronized void put(String key, CachedResponse response) {
+        remove(key);
+        entries.put(key, response);
+        cachedBytes += response.body.length;
+
+        Iterator<Map.Entry<String, CachedResponse>> eldest = entries.entrySet().iterator();
+        while (cachedBytes > maxBytes && eldest.hasNext()) {
+            cachedBytes -= eldest.next().getValue().body.length;
+            eldest.remove();
+        }
+    }
+
+    private synchronized void remove(String key) {
+        CachedResponse previous = entries.remove(key);
+        if (previous != null) {
+            cachedBytes -= previous.body.length;
+        }
+    }
+
+    private synchronized long cachedBytes() {
+        return cachedBytes;
+    }
+
+    /**
+     * A response whose first bytes were already read while deciding whether to cache it.
+     */
+    private static final class PartlyReadResponse implements ClientHttpResponse {
+        private final ClientHttpResponse response;
+        private final InputStream body;
+
+        private PartlyReadResponse(ClientHttpResponse response, byte[] prefix) throws IOException {
+            this.response = response;
+            this.body = new SequenceInputStream(new ByteArrayInputStream(prefix), response.getBody());
+        }
+
+        @Override
+        @NonNull
+        public HttpStatusCode getStatusCode() throws IOException {
+            return response.getStatusCode();
+        }
+
+        @Override
+        @NonNull
+        public String getStatusText() throws IOException {
+            return response.getStatusText();
+        }
+
+        @Override
+        @NonNull
+        public InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        @NonNull
+        public HttpHeaders getHeaders() {
+            return response.getHeaders();
+        }
+
+        @Override
+        public void close() {
+            response.close();
+        }
+    }
+
+    /**
+     * A fully read response. Handed out again for every 304, so each read starts a new stream.
+     */
+    private static final class CachedResponse implements ClientHttpResponse {
+        private final HttpStatusCode status;
+        private final String statusText;
+        private final HttpHeaders headers;
+        private final byte[] body;
+        private final String etag;
+        private final String lastModified;
+
+        private CachedResponse(HttpStatusCode status, String statusText, HttpHeaders headers, byte[] body,
+                               String etag, String lastModified) {
+            this.status = status;
+            this.statusText = statusText;
+            this.headers = HttpHeaders.readOnlyHttpHeaders(headers);
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        @NonNull
+        public HttpStatusCode getStatusCode() {
+            return status;
+        }
+
+        @Override
+        @NonNull
+        public String getStatusText() {
+            return statusText;
+        }
+
+        @Override
+        @NonNull
+        public InputStream getBody() {
+            return new ByteArrayInputStream(body);
+        }
+
+        @Override
+        @NonNull
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.quashbugs.magnus.config;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Short, non-reversible identifier for the credential of an outbound request, so per-credential
+ * state (rate-limit budgets, cached responses) can be keyed without keeping the token itself.
+ */
+final class CredentialDigest {
+
+    private CredentialDigest() {
+    }
+
+    static String of(String authorization) {
+        if (authorization == null) {
+            return "anonymous";
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(authorization.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 6);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.quashbugs.magnus.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.Builder;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates and owns every worker pool in the application. Each pool is bounded, has an explicit
+ * rejection policy and publishes {@code executor.pool.*} metrics tagged with its name. Sizes can be
+ * overridden per pool with {@code spring.executors.<name>.core-size}, {@code .max-size} and
+ * {@code .queue-capacity}.
+ * <p>
+ * Pools created with {@link #createVirtual} run each task on its own virtual thread;
+ * {@code max-size} is then a concurrency budget, and submitters wait while it is used up.
+ */
+@Component
+public class ExecutorRegistry {
+
+    @Getter
+    @Builder
+    public static class PoolSpec {
+        private final String name;
+        private final String threadNamePrefix;
+        private final int coreSize;
+        private final int maxSize;
+        private final int queueCapacity;
+        @Builder.Default
+        private final RejectedExecutionHandler rejectionPolicy = new ThreadPoolExecutor.AbortPolicy();
+        // How long shutdown waits for running and queued tasks; 0 interrupts them straight away
+        private final int awaitTerminationSeconds;
+    }
+
+    private final MeterRegistry meterRegistry;
+    private final Environment environment;
+    private final Map<String, AsyncTaskExecutor> pools = new ConcurrentHashMap<>();
+    private final Map<String, Integer> concurrencyLimits = new ConcurrentHashMap<>();
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExecutorRegistry.class);
+
+    @Autowired
+    public ExecutorRegistry(MeterRegistry meterRegistry, Environment environment) {
+        this.meterRegistry = meterRegistry;
+        this.environment = environment;
+    }
+
+    public ThreadPoolTaskExecutor create(PoolSpec spec) {
+        String name = spec.getName();
+        int coreSize = property(name, "core-size", spec.getCoreSize());
+        int maxSize = Math.max(coreSize, property(name, "max-size", spec.getMaxSize()));
+        int queueCapacity = property(name, "queue-capacity", spec.getQueueCapacity());
+
+        Tags tags = Tags.of("pool", name);
+        Counter rejected = Counter.builder("executor.pool.rejected")
+                .description("Tasks refused because the pool and its queue were full")
+                .tags(tags)
+                .register(meterRegistry);
+        Timer waitTimer = waitTimer(tags);
+        Timer executionTimer = executionTimer(tags);
+
+        RejectedExecutionHandler policy = spec.getRejectionPolicy();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(coreSize);
+        executor.setMaxPoolSize(maxSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix(spec.getThreadNamePrefix());
+        executor.setRejectedExecutionHandler((task, pool) -> {
+            rejected.increment();
+            policy.rejectedExecution(task, pool);
+        });
+        executor.setTaskDecorator(task -> {
+            long submittedAt = System.nanoTime();
+            // Decorated on the submitting thread, so a task keeps its submitter's rate-limit priority
+            Runnable prioritised = RateLimitGovernor.withCallerPriority(task);
+            return () -> {
+                waitTimer.record(System.nanoTime() - submittedAt, TimeUnit.NANOSECONDS);
+                executionTimer.record(prioritised);
+            };
+        });
+        if (spec.getAwaitTerminationSeconds() > 0) {
+            executor.setWaitForTasksToCompleteOnShutdown(true);
+            executor.setAwaitTerminationSeconds(spec.getAwaitTerminationSeconds());
+        }
+        executor.initialize();
+
+        Gauge.builder("executor.pool.active", executor, ThreadPoolTaskExecutor::getActiveCount)
+                .description("Threads currently running a task")
+                .tags(tags)
+                .register(meterRegistry);
+        Gauge.builder("executor.pool.queued", executor,
+                        pool -> pool.getThreadPoolExecutor().getQueue().size())
+                .description("Tasks waiting for a thread")
+                .tags(tags)
+                .register(meterRegistry);
+        Gauge.builder("executor.pool.size", executor, ThreadPoolTaskExecutor::getPoolSize)
+                .description("Threads currently in the pool")
+                .tags(tags)
+                .register(meterRegistry);
+
+        register(name, executor, maxSize);
+        LOGGER.info("Created executor pool {} (core {}, max {}, queue {})", name, coreSize, maxSize, queueCapacity);
+        return executor;
+    }
+
+    /**
+     * Creates a pool that starts a virtual thread per task, at most {@code max-size} at a time.
+     * Core size, queue capacity and rejection policy do not apply.
+     */
+    public AsyncTaskExecutor createVirtual(PoolSpec spec) {
+        String name = spec.getName();
+        int concurrencyLimit = property(name, "max-size", spec.getMaxSize());
+
+        SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor(spec.getThreadNamePrefix());
+        executor.setVirtualThreads(true);
+        executor.setConcurrencyLimit(concurrencyLimit);
+        executor.setTaskTerminationTimeout(TimeUnit.SECONDS.toMillis(spec.getAwaitTerminationSeconds()));
+
+        Tags tags = Tags.of("pool", name);
+        Timer waitTimer = waitTimer(tags);
+        Timer executionTimer = executionTimer(tags);
+        AtomicInteger waiting = new AtomicInteger();
+        AtomicInteger active = new AtomicInteger();
+        // Decoration happens before the submitter waits for budget, so the wait includes that time
+        executor.setTaskDecorator(task -> {
+            long submittedAt = System.nanoTime();
+            Runnable prioritised = RateLimitGovernor.withCallerPriority(task);
+            waiting.incrementAndGet();
+            return () -> {
+                waiting.decrementAndGet();
+                active.incrementAndGet();
+                try {
+                    waitTimer.record(System.nanoTime() - submittedAt, TimeUnit.NANOSECONDS);
+                    executionTimer.record(prioritised);
+                } finally {
+                    active.decrementAndGet();
+                }
+            };
+        });
+
+        Gauge.builder("executor.pool.active", active, AtomicInteger::get)
+                .description("Threads currently running a task")
+                .tags(tags)
+                .register(meterRegistry);
+        Gauge.builder("executor.pool.queued", waiting, AtomicInteger::get)
+                .description("Tasks waiting for a thread")
+                .tags(tags)
+                .register(meterRegistry);
+
+        register(name, executor, concurrencyLimit);
+        LOGGER.info("Created virtual thread pool {} (concurrency {})", name, concurrencyLimit);
+        return executor;
+    }
+
+    public AsyncTaskExecutor get(String name) {
+        AsyncTaskExecutor executor = pools.get(name);
+        if (executor == null) {
+            throw new IllegalArgumentException("Unknown executor pool: " + name);
+        }
+        return executor;
+    }
+
+    /**
+     * The most tasks the pool runs at once: its maximum size, or its budget for virtual thread pools.
+     */
+    public int concurrencyLimit(String name) {
+        get(name);
+        return concurrencyLimits.get(name);
+    }
+
+    /**
+     * Pools exposed as beans are already shut down by the context; this covers the rest (e.g. the
+     * default {@code @Async} executor). Shutting a pool down twice is harmless.
+     */
+    @PreDestroy
+    public void shutdown() {
+        pools.forEach((name, executor) -> {
+            if (executor instanceof ThreadPoolTaskExecutor pool) {
+                pool.shutdown();
+            } else if (executor instanceof SimpleAsyncTaskExecutor virtualPool) {
+                virtualPool.close();
+            }
+        });
+    }
+
+    private void register(String name, AsyncTaskExecutor executor, int concurrencyLimit) {
+        if (pools.putIfAbsent(name, executor) != null) {
+            throw new IllegalStateException("Executor pool " + name + " is already registered");
+        }
+        concurrencyLimits.put(name, concurrencyLimit);
+    }
+
+    private int property(String pool, String key, int defaultValue) {
+        return environment.getProperty("spring.executors." + pool + "." + key, Integer.class, defaultValue);
+    }
+
+    private Timer waitTimer(Tags tags) {
+        return Timer.builder("executor.pool.wait")
+                .description("Time tasks spent queued before a thread picked them up")
+                .tags(tags)
+                .register(meterRegistry);
+    }
+
+    private Timer executionTimer(Tags tags) {
+        return Timer.builder("executor.pool.execution")
+                .description("Time tasks spent running")
+                .tags(tags)
+                .register(meterRegistry);
+    }
+}
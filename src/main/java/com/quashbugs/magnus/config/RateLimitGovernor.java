@@ -0,0 +1,308 @@
+package com.quashbugs.magnus.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the rate-limit budget of every VCS credential from the {@code X-RateLimit-*} /
+ * {@code RateLimit-*} and {@code Retry-After} response headers, and makes callers wait rather than
+ * run into 403/429s. Background work (detection and its crawls) is paced once half the budget is
+ * used and stops short of a reserve that is kept for interactive requests.
+ */
+@Component
+public class RateLimitGovernor {
+
+    // Reset headers above this are epoch seconds (GitHub, GitLab); below it, seconds from now
+    private static final long EPOCH_SECONDS_THRESHOLD = 1_000_000_000L;
+    private static final long DEFAULT_PAUSE_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    private static final long IDLE_BUDGET_MILLIS = TimeUnit.HOURS.toMillis(2);
+    private static final ThreadLocal<Boolean> BACKGROUND = ThreadLocal.withInitial(() -> false);
+
+    @Value("${spring.vcs.ratelimit.max.wait.seconds:3600}")
+    private long maxBackgroundWaitSeconds;
+
+    @Value("${spring.vcs.ratelimit.interactive.max.wait.seconds:10}")
+    private long maxInteractiveWaitSeconds;
+
+    @Value("${spring.vcs.ratelimit.background.reserve:0.1}")
+    private double backgroundReserve;
+
+    @Value("${spring.vcs.ratelimit.pace.below:0.5}")
+    private double paceBelow;
+
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Budget> budgets = new ConcurrentHashMap<>();
+    private final Counter limitedCounter;
+    private final Timer interactiveWaitTimer;
+    private final Timer backgroundWaitTimer;
+    private static final Logger LOGGER = LoggerFactory.getLogger(RateLimitGovernor.class);
+
+    @Autowired
+    public RateLimitGovernor(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.limitedCounter = Counter.builder("vcs.ratelimit.limited")
+                .description("Responses that reported an exhausted rate limit")
+                .register(meterRegistry);
+        this.interactiveWaitTimer = waitTimer(meterRegistry, "interactive");
+        this.backgroundWaitTimer = waitTimer(meterRegistry, "background");
+    }
+
+    private static Timer waitTimer(MeterRegistry meterRegistry, String priority) {
+        return Timer.builder("vcs.ratelimit.wait")
+                .description("Time calls were held back to stay within the rate limit")
+                .tag("priority", priority)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Runs {@code task} with its VCS calls treated as background work.
+     */
+    public static void runAsBackground(Runnable task) {
+        boolean previous = BACKGROUND.get();
+        BACKGROUND.set(true);
+        try {
+            task.run();
+        } finally {
+            BACKGROUND.set(previous);
+        }
+    }
+
+    public static boolean isBackground() {
+        return BACKGROUND.get();
+    }
+
+    /**
+     * Wraps {@code task} so it runs with the priority of the thread that calls this, e.g. a pool
+     * task submitted by a detection run stays background while one submitted by a request handler
+     * stays interactive.
+     */
+    public static Runnable withCallerPriority(Runnable task) {
+        if (!isBackground()) {
+            return task;
+        }
+        return () -> runAsBackground(task);
+    }
+
+    /**
+     * The budget a request draws from: one per host and credential. Only a digest of the
+     * credential is kept.
+     */
+    public String budgetKey(String host, String authorization) {
+        return host + "/" + CredentialDigest.of(authorization);
+    }
+
+    /**
+     * Waits until a call against {@code budgetKey} fits the budget, or until the caller's maximum
+     * wait has passed. Returns the time the caller may still wait on a retry.
+     */
+    public long acquire(String budgetKey) throws InterruptedException {
+        boolean background = isBackground();
+        long maxWait = TimeUnit.SECONDS.toMillis(background ? maxBackgroundWaitSeconds : maxInteractiveWaitSeconds);
+        long start = System.currentTimeMillis();
+        long deadline = start + maxWait;
+
+        while (true) {
+            long now = System.currentTimeMillis();
+            long wait = reserve(budgetKey, background, now);
+            if (wait <= 0 || now >= deadline) {
+                break;
+            }
+            Thread.sleep(Math.min(wait, deadline - now));
+        }
+
+        long waited = System.currentTimeMillis() - start;
+        if (waited > 0) {
+            (background ? backgroundWaitTimer : interactiveWaitTimer).record(waited, TimeUnit.MILLISECONDS);
+        }
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    /**
+     * Updates the budget from a response. Returns how long to pause before retrying if the
+     * response was refused for exceeding the limit, or -1 if it was not.
+     */
+    public long record(String budgetKey, HttpStatusCode status, HttpHeaders headers) {
+        return record(budgetKey, status, headers, System.currentTimeMillis());
+    }
+
+    long record(String budgetKey, HttpStatusCode status, HttpHeaders headers, long now) {
+        Integer limit = intHeader(headers, "X-RateLimit-Limit", "RateLimit-Limit");
+        Integer remaining = intHeader(headers, "X-RateLimit-Remaining", "RateLimit-Remaining");
+        Long resetAt = resetAt(headers, now);
+        Long retryAt = retryAfter(headers, now);
+
+        boolean limited = status.value() == HttpStatus.TOO_MANY_REQUESTS.value()
+                || (status.value() == HttpStatus.FORBIDDEN.value()
+                && (retryAt != null || (remaining != null && remaining == 0)));
+
+        Budget budget = budget(budgetKey);
+        long pauseUntil = limited
+                ? (retryAt != null ? retryAt : resetAt != null ? resetAt : now + DEFAULT_PAUSE_MILLIS)
+                : 0;
+        budget.update(limit, remaining, resetAt, pauseUntil, now);
+        if (!limited) {
+            return -1;
+        }
+        limitedCounter.increment();
+        LOGGER.warn("Rate limit reached for {}, pausing calls for {}s", budgetKey, (pauseUntil - now) / 1000);
+        return Math.max(0, pauseUntil - now);
+    }
+
+    /**
+     * Takes one call from the budget and returns 0, or returns how long to wait first.
+     */
+    long reserve(String budgetKey, boolean background, long now) {
+        return budget(budgetKey).reserve(background, now);
+    }
+
+    // Installation tokens rotate hourly; forget budgets (and their gauges) that are no longer used
+    @Scheduled(fixedDelay = 600000)
+    public void evictIdleBudgets() {
+        long cutoff = System.currentTimeMillis() - IDLE_BUDGET_MILLIS;
+        budgets.entrySet().removeIf(entry -> {
+            if (entry.getValue().lastUsedAt >= cutoff) {
+                return false;
+            }
+            entry.getValue().meters.forEach(meterRegistry::remove);
+            return true;
+        });
+    }
+
+    private Budget budget(String budgetKey) {
+        return budgets.computeIfAbsent(budgetKey, key -> {
+            Budget budget = new Budget();
+            Tags tags = Tags.of("budget", key);
+            budget.meters.add(Gauge.builder("vcs.ratelimit.remaining", budget, b -> b.remaining)
+                    .description("Calls left in the current rate-limit window, -1 if unknown")
+                    .tags(tags)
+                    .register(meterRegistry));
+            budget.meters.add(Gauge.builder("vcs.ratelimit.limit", budget, b -> b.limit)
+                    .description("Calls allowed per rate-limit window, -1 if unknown")
+                    .tags(tags)
+                    .register(meterRegistry));
+            budget.meters.add(Gauge.builder("vcs.ratelimit.reset.seconds", budget,
+                            b -> Math.max(0, b.resetAt - System.currentTimeMillis()) / 1000.0)
+                    .description("Seconds until the rate-limit window resets")
+                    .tags(tags)
+                    .register(meterRegistry));
+            return budget;
+        });
+    }
+
+    private static Integer intHeader(HttpHeaders headers, String... names) {
+        for (String name : names) {
+            String value = headers.getFirst(name);
+            if (value != null) {
+                try {
+                    return Integer.parseInt(value.trim());
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Long resetAt(HttpHeaders headers, long now) {
+        for (String name : new String[]{"X-RateLimit-Reset", "RateLimit-Reset"}) {
+            String value = headers.getFirst(name);
+            if (value != null) {
+                try {
+                    long seconds = Long.parseLong(value.trim());
+                    return seconds > EPOCH_SECONDS_THRESHOLD ? seconds * 1000 : now + seconds * 1000;
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Long retryAfter(HttpHeaders headers, long now) {
+        String value = headers.getFirst(HttpHeaders.RETRY_AFTER);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return now + Long.parseLong(value.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            try {
+                return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            } catch (DateTimeParseException ignored) {
+                return null;
+            }
+        }
+    }
+
+    private final class Budget {
+        private final List<Meter> meters = new ArrayList<>();
+        private int limit = -1;
+        private int remaining = -1;
+        private long resetAt;
+        private long pausedUntil;
+        private long nextBackgroundAt;
+        private volatile long lastUsedAt = System.currentTimeMillis();
+
+        synchronized long reserve(boolean background, long now) {
+            lastUsedAt = now;
+            if (pausedUntil > now) {
+                return pausedUntil - now;
+            }
+            if (remaining < 0 || resetAt <= now) {
+                // Unknown budget or a new window: the next response tells us where we stand
+                return 0;
+            }
+            int floor = background ? (int) Math.ceil(limit * backgroundReserve) : 0;
+            if (remaining <= floor) {
+                return resetAt - now;
+            }
+            if (background && remaining < limit * paceBelow) {
+                if (nextBackgroundAt > now) {
+                    return nextBackgroundAt - now;
+                }
+                // Spread what is left above the reserve evenly over the rest of the window
+                nextBackgroundAt = now + (resetAt - now) / (remaining - floor);
+            }
+            remaining--;
+            return 0;
+        }
+
+        synchronized void update(Integer limit, Integer remaining, Long resetAt, long pauseUntil, long now) {
+            lastUsedAt = now;
+            if (limit != null) {
+                this.limit = limit;
+            }
+            if (remaining != null) {
+                this.remaining = remaining;
+            }
+            if (resetAt != null) {
+                this.resetAt = resetAt;
+            }
+            if (pauseUntil > pausedUntil) {
+                pausedUntil = pauseUntil;
+            }
+        }
+    }
+}
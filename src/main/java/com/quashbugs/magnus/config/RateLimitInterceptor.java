@@ -0,0 +1,56 @@
+package com.quashbugs.magnus.config;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.lang.NonNull;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.io.IOException;
+
+/**
+ * Holds calls back while their credential's rate limit is used up and retries calls the provider
+ * refused for exceeding it, instead of handing the 403/429 to the caller. {@code next} runs for
+ * every attempt, so a retried call still goes through it (e.g. the per-host connection limit).
+ */
+public class RateLimitInterceptor implements ClientHttpRequestInterceptor {
+
+    private static final int MAX_RETRIES = 3;
+
+    private final RateLimitGovernor governor;
+    private final ClientHttpRequestInterceptor next;
+
+    public RateLimitInterceptor(RateLimitGovernor governor, ClientHttpRequestInterceptor next) {
+        this.governor = governor;
+        this.next = next;
+    }
+
+    @Override
+    @NonNull
+    public ClientHttpResponse intercept(@NonNull HttpRequest request,
+                                        @NonNull byte[] body,
+                                        @NonNull ClientHttpRequestExecution execution) throws IOException {
+        String budgetKey = governor.budgetKey(request.getURI().getHost(),
+                request.getHeaders().getFirst(HttpHeaders.AUTHORIZATION));
+
+        for (int attempt = 0; ; attempt++) {
+            long waitAllowance;
+            try {
+                waitAllowance = governor.acquire(budgetKey);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ResourceAccessException("Interrupted waiting for the rate limit of " + request.getURI().getHost());
+            }
+
+            ClientHttpResponse response = next.intercept(request, body, execution);
+            long pause = governor.record(budgetKey, response.getStatusCode(), response.getHeaders());
+            // Give up on retrying when the pause outlasts what this caller is willing to wait
+            if (pause < 0 || attempt == MAX_RETRIES || pause > waitAllowance) {
+                return response;
+            }
+            response.close();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.quashbugs.magnus.config;
 
 import com.quashbugs.magnus.service.UserService;
+import jakarta.servlet.DispatcherType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
@@ -91,7 +92,8 @@ public class SecurityConfiguration {
                 .cors(cors -> cors.configurationSource(corsConfigurationSource()))
                 .csrf(AbstractHttpConfigurer::disable)
                 .authorizeHttpRequests(request -> request
-                        .requestMatchers("/api/sse/**").permitAll()
+                        // The request was authorized before it went async; the JWT filter does not run again
+                        .dispatcherTypeMatchers(DispatcherType.ASYNC).permitAll()
                         .requestMatchers("/swagger-ui/**", "/v3/**").authenticated()
                         .requestMatchers("/swagger-ui/index.html").authenticated()
                         .requestMatchers("/api/auth/**").permitAll()
@@ -102,6 +104,7 @@ public class SecurityConfiguration {
                         .requestMatchers("/api/github/**").permitAll()
                         .requestMatchers("/api/repos/updates/**").permitAll()
                         .requestMatchers("/api/webhooks/**").permitAll()
+                        .requestMatchers("/api/repo/get-status/changes").authenticated()
                         .requestMatchers("/api/repo/**").permitAll()
                         .anyRequest().authenticated())
                 .httpBasic(Customizer.withDefaults())
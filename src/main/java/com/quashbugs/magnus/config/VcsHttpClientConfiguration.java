@@ -0,0 +1,59 @@
+package com.quashbugs.magnus.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+
+@Configuration
+public class VcsHttpClientConfiguration {
+
+    @Value("${spring.vcs.http.connect.timeout:5000}")
+    private long connectTimeoutMillis;
+
+    @Value("${spring.vcs.http.read.timeout:30000}")
+    private long readTimeoutMillis;
+
+    @Value("${spring.vcs.http.keepalive.timeout:300}")
+    private long keepAliveTimeoutSeconds;
+
+    @Value("${spring.vcs.http.max.connections.per.host:20}")
+    private int maxConnectionsPerHost;
+
+    @Value("${spring.vcs.http.cache.max.bytes:33554432}")
+    private long responseCacheMaxBytes;
+
+    @Bean
+    public HttpClient vcsHttpClient() {
+        // The JDK client reads its pool settings once, when the first client is created
+        if (System.getProperty("jdk.httpclient.keepalive.timeout") == null) {
+            System.setProperty("jdk.httpclient.keepalive.timeout", Long.toString(keepAliveTimeoutSeconds));
+        }
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    @Bean
+    public RestTemplate vcsRestTemplate(HttpClient vcsHttpClient,
+                                        RateLimitGovernor rateLimitGovernor,
+                                        MeterRegistry meterRegistry) {
+        JdkClientHttpRequestFactory requestFactory = new JdkClientHttpRequestFactory(vcsHttpClient);
+        requestFactory.setReadTimeout(Duration.ofMillis(readTimeoutMillis));
+
+        RestTemplate restTemplate = new RestTemplate(requestFactory);
+        // Outermost, so the rate limiter sees the real 304s
+        restTemplate.getInterceptors().add(new ConditionalRequestCacheInterceptor(responseCacheMaxBytes, meterRegistry));
+        // The host limit sits inside the rate limiter so a paused call does not hold a connection slot
+        restTemplate.getInterceptors().add(new RateLimitInterceptor(rateLimitGovernor,
+                new HostConcurrencyLimitInterceptor(maxConnectionsPerHost, Duration.ofMillis(readTimeoutMillis))));
+        return restTemplate;
+    }
+}
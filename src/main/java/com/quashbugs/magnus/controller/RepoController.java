@@ -6,16 +6,21 @@ import com.quashbugs.magnus.model.Configuration;
 import com.quashbugs.magnus.model.Repo;
 import com.quashbugs.magnus.model.User;
 import com.quashbugs.magnus.repository.RepoRepository;
+import com.quashbugs.magnus.service.MembershipService;
 import com.quashbugs.magnus.service.RepoService;
+import com.quashbugs.magnus.service.RepoStateIndex;
 import com.quashbugs.magnus.service.VcsProviderFactory;
 import io.micrometer.common.util.StringUtils;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -27,14 +32,22 @@ public class RepoController {
     private final RepoService repoService;
     private final VcsProviderFactory vcsProviderFactory;
     private final RepoRepository repoRepository;
+    private final RepoStateIndex repoStateIndex;
+    private final MembershipService membershipService;
+
+    private static final long MAX_STATUS_WAIT_SECONDS = 30;
 
     @Autowired
     public RepoController(RepoService repoService,
                           VcsProviderFactory vcsProviderFactory,
-                          RepoRepository repoRepository) {
+                          RepoRepository repoRepository,
+                          RepoStateIndex repoStateIndex,
+                          MembershipService membershipService) {
         this.repoService = repoService;
         this.vcsProviderFactory = vcsProviderFactory;
         this.repoRepository = repoRepository;
+        this.repoStateIndex = repoStateIndex;
+        this.membershipService = membershipService;
     }
 
     @GetMapping("/get-repo")
@@ -76,6 +89,59 @@ public class RepoController {
         }
     }
 
+    /**
+     * Versioned status poll. {@code versions[i]} is the last stateVersion the client holds for
+     * {@code repoIds[i]}. Returns the repos whose status changed; if none did, waits up to
+     * {@code waitSeconds} for a change and answers 304 when nothing happened. Only repos of the
+     * caller's organisations can be polled.
+     */
+    @GetMapping("/get-status/changes")
+    public DeferredResult<ResponseEntity<ResponseDTO>> getRepoStatusChanges(
+            Authentication authentication,
+            @RequestParam List<String> repoIds,
+            @RequestParam(required = false) List<Long> versions,
+            @RequestParam(defaultValue = "0") long waitSeconds) {
+        long waitMillis = Math.min(Math.max(waitSeconds, 0), MAX_STATUS_WAIT_SECONDS) * 1000;
+        DeferredResult<ResponseEntity<ResponseDTO>> result = new DeferredResult<>(
+                waitMillis > 0 ? waitMillis : null, () -> ResponseEntity.status(HttpStatus.NOT_MODIFIED).build());
+
+        if (repoIds.isEmpty() || (versions != null && versions.size() != repoIds.size())) {
+            result.setResult(ResponseEntity.badRequest()
+                    .body(new ResponseDTO(false, "Error fetching status for Repo", "repoIds and versions must have the same length")));
+            return result;
+        }
+
+        User user = (User) authentication.getPrincipal();
+        if (!membershipService.canAccessRepos(user, repoIds)) {
+            result.setResult(ResponseEntity.status(HttpStatus.FORBIDDEN)
+                    .body(new ResponseDTO(false, "Error fetching status for Repo", "Not a member of the repository's organisation")));
+            return result;
+        }
+
+        Map<String, Long> knownVersions = new LinkedHashMap<>();
+        for (int i = 0; i < repoIds.size(); i++) {
+            knownVersions.put(repoIds.get(i), versions != null ? versions.get(i) : null);
+        }
+
+        try {
+            if (waitMillis == 0) {
+                List<RepoStatusDTO> changed = repoStateIndex.changedSince(knownVersions);
+                result.setResult(changed.isEmpty()
+                        ? ResponseEntity.status(HttpStatus.NOT_MODIFIED).build()
+                        : ResponseEntity.ok(new ResponseDTO(true, "Repository statuses fetched successfully", changed)));
+                return result;
+            }
+
+            Runnable cancel = repoStateIndex.awaitChanges(knownVersions, changed ->
+                    result.setResult(ResponseEntity.ok(new ResponseDTO(true, "Repository statuses fetched successfully", changed))));
+            result.onCompletion(cancel);
+        } catch (Exception e) {
+            result.setResult(ResponseEntity.internalServerError()
+                    .body(new ResponseDTO(false, "Unexpected error occurred", e.getMessage())));
+        }
+        return result;
+    }
+
     @GetMapping("/fetch-branches")
     public ResponseEntity<ResponseDTO> fetchRepoBranch(Authentication authentication, @RequestParam String orgId, @RequestParam String repoId) {
         try {
@@ -1,51 +1,220 @@
 package com.quashbugs.magnus.controller;
 
+import com.quashbugs.magnus.model.ClusterEventBatch;
+import com.quashbugs.magnus.model.Repo;
+import com.quashbugs.magnus.model.User;
+import com.quashbugs.magnus.service.ClusterEventBus;
+import com.quashbugs.magnus.service.MembershipService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.server.ResponseStatusException;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.util.ArrayList;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 @RestController
 @RequestMapping("/api/sse/")
 //@CrossOrigin(origins = {"http://localhost:3000", "http://localhost:8080"}, allowCredentials = "true")
 public class SSEController {
-    private final List<SseEmitter> emitters = new CopyOnWriteArrayList<>();
+    // topic ("org:<id>" or "repo:<id>") -> subscribers and recent events. Only topics someone
+    // subscribed to are journalled; they are kept for idle.ttl after the last subscriber leaves so
+    // a reconnecting client can still be replayed, and at most max.idle of those are kept at all
+    private final Map<String, SseTopic> topics = new ConcurrentHashMap<>();
+
+    @Value("${spring.sse.topic.idle.ttl.seconds:300}")
+    private long idleTopicTtlSeconds;
+
+    @Value("${spring.sse.topic.max.idle:10000}")
+    private int maxIdleTopics;
+
+    // Seeded from the clock so ids keep increasing across restarts
+    private final AtomicLong eventIds = new AtomicLong(System.currentTimeMillis() * 1000);
+    private static final int MAX_REMEMBERED_CLUSTER_EVENTS = 10000;
+    // origin node and event id of the cluster events delivered recently
+    private final Map<String, Boolean> deliveredFromCluster = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_REMEMBERED_CLUSTER_EVENTS;
+                }
+            });
+    private final Executor sseDispatchExecutor;
+    private final ClusterEventBus clusterEventBus;
+    private final MembershipService membershipService;
 
+    @Autowired
+    public SSEController(@Qualifier("sseDispatchExecutor") Executor sseDispatchExecutor,
+                         ClusterEventBus clusterEventBus,
+                         MembershipService membershipService) {
+        this.sseDispatchExecutor = sseDispatchExecutor;
+        this.clusterEventBus = clusterEventBus;
+        this.membershipService = membershipService;
+        clusterEventBus.register(ClusterEventBus.SSE_CHANNEL, this::deliverFromCluster);
+    }
+
+    /**
+     * Subscribes to one repo or organisation the caller is a member of. Without either, the caller
+     * gets the events of all their organisations, as before events were split into topics.
+     */
     @GetMapping("/subscribe")
-    public SseEmitter subscribe() {
+    public SseEmitter subscribe(Authentication authentication,
+                                @RequestParam(required = false) String orgId,
+                                @RequestParam(required = false) String repoId,
+                                @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        User user = (User) authentication.getPrincipal();
+        List<String> topicNames;
+        if (repoId != null && !repoId.isBlank()) {
+            if (!membershipService.canAccessRepo(user, repoId)) {
+                throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Not a member of the repository's organisation");
+            }
+            topicNames = List.of(repoTopic(repoId));
+        } else if (orgId != null && !orgId.isBlank()) {
+            if (!membershipService.isMember(user, orgId)) {
+                throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Not a member of the organisation");
+            }
+            topicNames = List.of(orgTopic(orgId));
+        } else {
+            topicNames = membershipService.organisationIds(user).stream().map(SSEController::orgTopic).toList();
+        }
+
         SseEmitter emitter = new SseEmitter(Long.MAX_VALUE);
-        this.emitters.add(emitter);
+        List<SseTopic> sseTopics = new CopyOnWriteArrayList<>();
+        SseSubscriber subscriber = new SseSubscriber(emitter, sseDispatchExecutor,
+                closed -> sseTopics.forEach(sseTopic -> sseTopic.unsubscribe(closed)));
 
-        emitter.onCompletion(() -> this.emitters.remove(emitter));
-        emitter.onTimeout(() -> this.emitters.remove(emitter));
+        emitter.onCompletion(subscriber::close);
+        emitter.onTimeout(subscriber::close);
+        emitter.onError(e -> subscriber.close());
 
         // Send an initial event to confirm the connection
-        try {
-            emitter.send(SseEmitter.event().name("INIT").data("Connected"));
-        } catch (IOException e) {
-            emitter.completeWithError(e);
+        subscriber.enqueue(controlEvent("INIT", "Connected"));
+
+        // Replay is ordered within each topic; events of different organisations may interleave
+        Long lastId = parseEventId(lastEventId);
+        boolean[] complete = {true};
+        for (String topicName : topicNames) {
+            // Joined inside compute so the idle sweep cannot evict the topic in between
+            topics.compute(topicName, (key, existing) -> {
+                SseTopic sseTopic = existing != null ? existing : new SseTopic(eventIds.get());
+                complete[0] &= sseTopic.subscribe(subscriber, lastId);
+                sseTopics.add(sseTopic);
+                return sseTopic;
+            });
+        }
+        if (subscriber.isClosed()) {
+            // Closed while joining (e.g. the replay overflowed its buffer) after onClose already ran
+            sseTopics.forEach(sseTopic -> sseTopic.unsubscribe(subscriber));
+        }
+        if (!complete[0]) {
+            // Some missed events are no longer journalled; the client has to reload its state
+            subscriber.enqueue(controlEvent("RESYNC", "Missed events are no longer available"));
         }
 
         return emitter;
     }
 
-    public void sendEvent(String eventName, String data) {
-        List<SseEmitter> deadEmitters = new ArrayList<>();
+    /**
+     * Queues the event for the subscribers of the repo and of the organisation it belongs to,
+     * on this node and on the rest of the cluster, and returns without waiting for delivery.
+     */
+    public void sendEvent(String eventName, String data, Repo repo) {
+        String orgId = repo.getOrganisation() != null ? repo.getOrganisation().getId() : null;
+        long eventId = deliver(eventName, data, repo.getId(), orgId);
+        clusterEventBus.publish(new ClusterEventBatch.Message(
+                ClusterEventBus.SSE_CHANNEL, eventId, eventName, data, repo.getId(), orgId, null));
+    }
+
+    // Event ids are only meaningful on the node that issued them, so a remote event is numbered
+    // again here; its origin id only serves to drop a batch the bus hands over twice
+    private void deliverFromCluster(ClusterEventBatch.Message message) {
+        if (deliveredFromCluster.put(message.getOrigin() + ":" + message.getEventId(), Boolean.TRUE) != null) {
+            return;
+        }
+        deliver(message.getEventName(), message.getData(), message.getRepoId(), message.getOrgId());
+    }
 
-        this.emitters.forEach(emitter -> {
-            try {
-                emitter.send(SseEmitter.event().name(eventName).data(data));
-            } catch (IOException e) {
-                deadEmitters.add(emitter);
+    // Ids are handed out and journalled under one lock, so every journal is in id order and a
+    // replay after Last-Event-ID cannot skip an event that was journalled late
+    private synchronized long deliver(String eventName, String data, String repoId, String orgId) {
+        long eventId = eventIds.incrementAndGet();
+        SseTopic.SseEvent event = new SseTopic.SseEvent(eventId, eventName, data, eventName + ":" + repoId);
+        publish(repoTopic(repoId), event);
+        if (orgId != null) {
+            publish(orgTopic(orgId), event);
+        }
+        return eventId;
+    }
+
+    // Topics nobody subscribed to are not created: a later subscriber is told to resync instead
+    private void publish(String topic, SseTopic.SseEvent event) {
+        SseTopic sseTopic = topics.get(topic);
+        if (sseTopic != null) {
+            sseTopic.publish(event);
+        }
+    }
+
+    /**
+     * Drops topics whose last subscriber left more than the TTL ago, and beyond the idle-topic
+     * limit the longest idle ones regardless of the TTL.
+     */
+    @Scheduled(fixedDelayString = "${spring.sse.topic.sweep.ms:30000}")
+    public void evictIdleTopics() {
+        long cutoff = System.currentTimeMillis() - idleTopicTtlSeconds * 1000;
+        // Snapshot the times, they keep changing while we sort
+        List<Map.Entry<String, Long>> idle = new ArrayList<>();
+        topics.forEach((name, topic) -> {
+            if (!topic.hasSubscribers()) {
+                idle.add(Map.entry(name, topic.lastActiveAt()));
             }
         });
+        idle.sort(Map.Entry.comparingByValue());
+
+        int overLimit = idle.size() - maxIdleTopics;
+        for (int i = 0; i < idle.size(); i++) {
+            long activeBefore = i < overLimit ? Long.MAX_VALUE : cutoff;
+            topics.computeIfPresent(idle.get(i).getKey(), (key, topic) ->
+                    !topic.hasSubscribers() && topic.lastActiveAt() < activeBefore ? null : topic);
+        }
+    }
+
+    private static SseTopic.SseEvent controlEvent(String eventName, String data) {
+        return new SseTopic.SseEvent(-1, eventName, data, null);
+    }
+
+    private static Long parseEventId(String lastEventId) {
+        if (lastEventId == null || lastEventId.isBlank()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(lastEventId.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String orgTopic(String orgId) {
+        return "org:" + orgId;
+    }
 
-        this.emitters.removeAll(deadEmitters);
+    private static String repoTopic(String repoId) {
+        return "repo:" + repoId;
     }
 }
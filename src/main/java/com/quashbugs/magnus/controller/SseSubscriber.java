@@ -0,0 +1,134 @@
+package com.quashbugs.magnus.controller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * One SSE connection with its own bounded buffer. Publishers only enqueue; sends happen on the
+ * dispatcher executor, at most one drain per subscriber at a time so events stay in order.
+ * When the buffer is full the oldest pending event with the same coalesce key is replaced by the
+ * newer one; if there is nothing to coalesce the subscriber is too far behind and is disconnected.
+ */
+class SseSubscriber {
+
+    static final int BUFFER_CAPACITY = 256;
+    private static final int MAX_EVENTS_PER_DRAIN = 64;
+
+    private final SseEmitter emitter;
+    private final Executor dispatcher;
+    private final Consumer<SseSubscriber> onClose;
+    private final ArrayDeque<SseTopic.SseEvent> buffer = new ArrayDeque<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private static final Logger LOGGER = LoggerFactory.getLogger(SseSubscriber.class);
+
+    SseSubscriber(SseEmitter emitter, Executor dispatcher, Consumer<SseSubscriber> onClose) {
+        this.emitter = emitter;
+        this.dispatcher = dispatcher;
+        this.onClose = onClose;
+    }
+
+    void enqueue(SseTopic.SseEvent event) {
+        if (closed.get()) {
+            return;
+        }
+
+        boolean overflow = false;
+        synchronized (buffer) {
+            if (buffer.size() >= BUFFER_CAPACITY && !dropPending(event.coalesceKey())) {
+                overflow = true;
+            } else {
+                buffer.add(event);
+            }
+        }
+
+        if (overflow) {
+            LOGGER.warn("Disconnecting SSE subscriber that fell {} events behind", BUFFER_CAPACITY);
+            close();
+            return;
+        }
+        scheduleDrain();
+    }
+
+    private boolean dropPending(String coalesceKey) {
+        if (coalesceKey == null) {
+            return false;
+        }
+        Iterator<SseTopic.SseEvent> pending = buffer.iterator();
+        while (pending.hasNext()) {
+            if (coalesceKey.equals(pending.next().coalesceKey())) {
+                pending.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void scheduleDrain() {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            dispatcher.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            // Events stay buffered and the next enqueue schedules the drain again
+            draining.set(false);
+        }
+    }
+
+    private void drain() {
+        for (int sent = 0; sent < MAX_EVENTS_PER_DRAIN; sent++) {
+            SseTopic.SseEvent event;
+            synchronized (buffer) {
+                event = buffer.poll();
+                if (event == null) {
+                    draining.set(false);
+                    return;
+                }
+            }
+
+            try {
+                SseEmitter.SseEventBuilder builder = SseEmitter.event().name(event.name()).data(event.data());
+                if (event.id() >= 0) {
+                    builder.id(Long.toString(event.id()));
+                }
+                emitter.send(builder);
+            } catch (Exception e) {
+                close();
+                draining.set(false);
+                return;
+            }
+        }
+
+        // Yield the worker to other subscribers, then carry on with what is left
+        draining.set(false);
+        scheduleDrain();
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (buffer) {
+            buffer.clear();
+        }
+        onClose.accept(this);
+        try {
+            emitter.complete();
+        } catch (Exception e) {
+            LOGGER.debug("SSE emitter already closed", e);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.quashbugs.magnus.controller;
+
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Subscribers of one SSE topic together with a bounded journal of its most recent events.
+ * Publishing and subscribing lock the topic, so a reconnecting subscriber sees every journalled
+ * event after its Last-Event-ID exactly once, followed by live events. A topic only exists while
+ * it has subscribers and for a while after the last one left, see {@link #lastActiveAt()}.
+ */
+class SseTopic {
+
+    static final int JOURNAL_CAPACITY = 200;
+
+    private final ArrayDeque<SseEvent> journal = new ArrayDeque<>();
+    private final Set<SseSubscriber> subscribers = ConcurrentHashMap.newKeySet();
+    // Highest event id this topic cannot replay: evicted from the journal, or issued before the
+    // topic existed on this node (e.g. before a restart)
+    private long evictedThrough;
+    private volatile long lastActiveAt = System.currentTimeMillis();
+
+    record SseEvent(long id, String name, String data, String coalesceKey) {
+    }
+
+    SseTopic(long createdAfterEventId) {
+        this.evictedThrough = createdAfterEventId;
+    }
+
+    synchronized void publish(SseEvent event) {
+        journal.addLast(event);
+        if (journal.size() > JOURNAL_CAPACITY) {
+            evictedThrough = journal.removeFirst().id();
+        }
+        subscribers.forEach(subscriber -> subscriber.enqueue(event));
+    }
+
+    /**
+     * Registers the subscriber, first replaying what it missed since {@code lastEventId}.
+     * Returns false if part of that range has already left the journal and cannot be replayed.
+     */
+    synchronized boolean subscribe(SseSubscriber subscriber, Long lastEventId) {
+        boolean complete = true;
+        if (lastEventId != null) {
+            complete = lastEventId >= evictedThrough;
+            for (SseEvent event : journal) {
+                if (event.id() > lastEventId) {
+                    subscriber.enqueue(event);
+                }
+            }
+        }
+        subscribers.add(subscriber);
+        lastActiveAt = System.currentTimeMillis();
+        return complete;
+    }
+
+    void unsubscribe(SseSubscriber subscriber) {
+        if (subscribers.remove(subscriber)) {
+            lastActiveAt = System.currentTimeMillis();
+        }
+    }
+
+    boolean hasSubscribers() {
+        return !subscribers.isEmpty();
+    }
+
+    // When a subscriber last joined or left
+    long lastActiveAt() {
+        return lastActiveAt;
+    }
+}
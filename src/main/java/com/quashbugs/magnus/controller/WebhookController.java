@@ -2,6 +2,7 @@ package com.quashbugs.magnus.controller;
 
 import com.quashbugs.magnus.dto.ResponseDTO;
 import com.quashbugs.magnus.service.GithubService;
+import com.quashbugs.magnus.service.WebhookIngestionService;
 import com.quashbugs.magnus.service.WebhookService;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -15,29 +16,33 @@ public class WebhookController {
 
     private final GithubService githubService;
     private final WebhookService webhookService;
+    private final WebhookIngestionService webhookIngestionService;
 
     @Autowired
     public WebhookController(GithubService githubService,
-                             WebhookService webhookService) {
+                             WebhookService webhookService,
+                             WebhookIngestionService webhookIngestionService) {
         this.githubService = githubService;
         this.webhookService = webhookService;
+        this.webhookIngestionService = webhookIngestionService;
     }
 
     @PostMapping("/github")
     public ResponseEntity<String> handleGitHubWebhook(
             @RequestBody String payload,
             @RequestHeader("X-GitHub-Event") String eventType,
-            @RequestHeader("X-Hub-Signature-256") String signature) {
+            @RequestHeader("X-Hub-Signature-256") String signature,
+            @RequestHeader(value = "X-GitHub-Delivery", required = false) String deliveryId) {
 
         if (!githubService.verifySignature(payload, signature)) {
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body("Invalid signature");
         }
 
-        if ("pull_request".equals(eventType)) {
-            githubService.processPullRequestEvent(payload);
+        if ("pull_request".equals(eventType) || "push".equals(eventType)) {
+            webhookIngestionService.accept(deliveryId, eventType, payload);
         }
 
-        return ResponseEntity.ok("Webhook processed successfully");
+        return ResponseEntity.accepted().body("Webhook accepted");
     }
 
     @PostMapping("/callback/scanning")
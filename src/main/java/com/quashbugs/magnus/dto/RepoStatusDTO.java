@@ -0,0 +1,37 @@
+package com.quashbugs.magnus.dto;
+
+import com.quashbugs.magnus.model.BranchDetails;
+import com.quashbugs.magnus.model.Repo;
+import com.quashbugs.magnus.model.RepoState;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class RepoStatusDTO {
+    private String id;
+    private String name;
+    private RepoState state;
+    private boolean isMobile;
+    private String platform;
+    private BranchDetails primaryBranchDetails;
+    private BranchDetails secondaryBranchDetails;
+    private long stateVersion;
+
+    public static RepoStatusDTO from(Repo repo) {
+        return RepoStatusDTO.builder()
+                .id(repo.getId())
+                .name(repo.getName())
+                .state(repo.getState())
+                .isMobile(repo.isMobile())
+                .platform(repo.getPlatform())
+                .primaryBranchDetails(repo.getPrimaryBranchDetails())
+                .secondaryBranchDetails(repo.getSecondaryBranchDetails())
+                .stateVersion(repo.getStateVersion())
+                .build();
+    }
+}
@@ -0,0 +1,52 @@
+package com.quashbugs.magnus.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "cluster_events")
+public class ClusterEventBatch {
+    @Id
+    private String id;
+    private String origin;
+    private Instant createdAt;
+    private List<Message> messages;
+
+    @Data
+    @NoArgsConstructor
+    public static class Message {
+        private String channel;
+        private long eventId;
+        private String eventName;
+        private String data;
+        private String repoId;
+        private String orgId;
+        // WebSocket topic, null for a broadcast to every session
+        private String topic;
+        // Node that published the message; set by the bus on delivery, not stored
+        @Transient
+        private String origin;
+
+        public Message(String channel, long eventId, String eventName, String data,
+                       String repoId, String orgId, String topic) {
+            this.channel = channel;
+            this.eventId = eventId;
+            this.eventName = eventName;
+            this.data = data;
+            this.repoId = repoId;
+            this.orgId = orgId;
+            this.topic = topic;
+        }
+    }
+}
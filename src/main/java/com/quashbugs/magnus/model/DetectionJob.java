@@ -0,0 +1,44 @@
+package com.quashbugs.magnus.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+/**
+ * A mobile-detection run for one repository. There is at most one job per repo; finished jobs are
+ * reset to PENDING when the repo is queued again, and a running job is marked to run once more
+ * when it finishes. Access tokens are never stored here, the provider resolves a fresh one when
+ * the job runs.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "detection_jobs")
+@CompoundIndex(name = "state_nextAttemptAt", def = "{ 'state': 1, 'nextAttemptAt': 1 }")
+public class DetectionJob {
+    @Id
+    private String id;
+    @Indexed(unique = true)
+    private String repoId;
+    private String vcsProvider;
+    // Gitlab and Bitbucket tokens belong to the member who connected the repos
+    private String memberId;
+    private DetectionJobState state;
+    private int attempts;
+    private LocalDateTime nextAttemptAt;
+    private String leaseOwner;
+    private LocalDateTime leaseExpiresAt;
+    private String lastError;
+    // Set when the repo was queued again while the job was running
+    private boolean rerun;
+    private LocalDateTime createdAt;
+    private LocalDateTime updatedAt;
+}
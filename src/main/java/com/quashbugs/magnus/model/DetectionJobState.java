@@ -0,0 +1,8 @@
+package com.quashbugs.magnus.model;
+
+public enum DetectionJobState {
+    PENDING,
+    RUNNING,
+    DONE,
+    FAILED
+}
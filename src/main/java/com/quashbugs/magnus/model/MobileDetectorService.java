@@ -5,8 +5,11 @@ import com.quashbugs.magnus.dto.PlatformScoreDTO;
 import com.quashbugs.magnus.dto.RepoFile;
 import org.springframework.stereotype.Service;
 
-import java.util.List;
-import java.util.function.Predicate;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.BiPredicate;
 import java.util.stream.Stream;
 
 @Service
@@ -14,13 +17,87 @@ public class MobileDetectorService {
 
     private static final int MOBILE_THRESHOLD = 60;
 
+    private static final CompiledRules RULES = new RuleSetBuilder()
+            .platform("Android", true)
+            .any(40, names("AndroidManifest.xml"))
+            .any(30, pathContains("/src/main/java/", "/src/main/kotlin/"))
+            .any(20, names("build.gradle", "build.gradle.kts"))
+            .any(10, names("gradlew", "gradlew.bat"))
+            .any(20, pathContains("/src/main/res/"))
+            .moreThan(5, 15, extensions("java", "kt"))
+            .any(15, both(pathContains("/res/layout/"), extensions("xml")))
+            .any(-50, names("pubspec.yaml").or(pathContains("/lib/main.dart")))
+
+            .platform("iOS", false)
+            .any(30, extensions("xcodeproj", "xcworkspace"))
+            .any(20, names("Info.plist"))
+            .any(20, names("AppDelegate.swift", "App.swift"))
+            .any(20, names("Package.swift"))
+            .any(15, pathContains("/Views/", "/Models/", "/ViewModels/"))
+            .moreThan(5, 15, extensions("swift"))
+            .any(10, extensions("storyboard", "xib"))
+
+            .platform("React Native", false)
+            .any(20, names("package.json"))
+            .any(20, names("App.js", "App.tsx"))
+            .allPresent(30, pathStartsWith("android/"), pathStartsWith("ios/"))
+            .moreThan(5, 15, extensions("js", "tsx"))
+            .any(15, pathContains("/components/", "/screens/"))
+
+            .platform("Flutter", false)
+            .any(40, names("pubspec.yaml"))
+            .any(40, pathContains("/lib/main.dart"))
+            .any(30, names("flutter.gradle"))
+            .moreThan(5, 20, extensions("dart"))
+            .any(20, pathContains("/lib/widgets/", "/lib/screens/"))
+            .any(10, pathContains("/test/"))
+            .any(10, names(".metadata"))
+            .any(10, names("analysis_options.yaml"))
+            .allPresent(20, pathStartsWith("android/"), pathStartsWith("ios/"))
+            .compile();
+
     public MobileProjectInfoDTO analyzeMobileProject(List<RepoFile> files) {
-        PlatformScoreDTO androidScore = calculateAndroidScore(files);
-        PlatformScoreDTO iOSScore = calculateiOSScore(files);
-        PlatformScoreDTO reactNativeScore = calculateReactNativeScore(files);
-        PlatformScoreDTO flutterScore = calculateFlutterScore(files);
+        return toProjectInfo(RULES.score(files));
+    }
+
+    /**
+     * Counts, per rule clause, how many of {@code paths} it matches. The counts can be kept up to
+     * date with {@link #applyPathChange} as files are added and removed, and scored with
+     * {@link #analyzeClauseCounts} without going over the whole file list again.
+     */
+    public int[] countClauses(Collection<String> paths) {
+        int[] counts = new int[RULES.clauseTargets().length];
+        for (String path : paths) {
+            RULES.apply(counts, path, 1);
+        }
+        return counts;
+    }
 
-        PlatformScoreDTO maxScore = Stream.of(androidScore, iOSScore, reactNativeScore, flutterScore)
+    /**
+     * Adds ({@code delta} 1) or removes ({@code delta} -1) one file from counts made by
+     * {@link #countClauses}.
+     */
+    public void applyPathChange(int[] clauseCounts, String path, int delta) {
+        RULES.apply(clauseCounts, path, delta);
+    }
+
+    public MobileProjectInfoDTO analyzeClauseCounts(int[] clauseCounts) {
+        if (clauseCounts.length != RULES.clauseTargets().length) {
+            throw new IllegalArgumentException("Clause counts were made with a different rule set");
+        }
+        return toProjectInfo(RULES.totals(clauseCounts));
+    }
+
+    /**
+     * Identifies the rule set. Stored clause counts are only valid for the fingerprint they were
+     * made with.
+     */
+    public String ruleSetFingerprint() {
+        return RULES.fingerprint();
+    }
+
+    private MobileProjectInfoDTO toProjectInfo(PlatformScoreDTO[] scores) {
+        PlatformScoreDTO maxScore = Stream.of(scores)
                 .max(PlatformScoreDTO::compareTo)
                 .orElse(new PlatformScoreDTO("Unknown", 0));
 
@@ -30,60 +107,296 @@ public class MobileDetectorService {
         return new MobileProjectInfoDTO(isMobile, platform);
     }
 
-    private PlatformScoreDTO calculateAndroidScore(List<RepoFile> files) {
-        int score = 0;
-        score += scoreForFile(files, f -> f.getName().equals("AndroidManifest.xml"), 40);
-        score += scoreForFile(files, f -> f.getPath().contains("/src/main/java/") || f.getPath().contains("/src/main/kotlin/"), 30);
-        score += scoreForFile(files, f -> f.getName().equals("build.gradle") || f.getName().equals("build.gradle.kts"), 20);
-        score += scoreForFile(files, f -> f.getName().equals("gradlew") || f.getName().equals("gradlew.bat"), 10);
-        score += scoreForFile(files, f -> f.getPath().contains("/src/main/res/"), 20);
-        score += scoreForFileCount(files, f -> f.getName().endsWith(".java") || f.getName().endsWith(".kt"), 15, 5);
-        score += scoreForFile(files, f -> f.getPath().contains("/res/layout/") && f.getName().endsWith(".xml"), 15);
-        score -= scoreForFile(files, f -> f.getName().equals("pubspec.yaml") || f.getPath().contains("/lib/main.dart"), 50);
-        return new PlatformScoreDTO("Android", Math.max(score, 0));
-    }
-
-    private PlatformScoreDTO calculateiOSScore(List<RepoFile> files) {
-        int score = 0;
-        score += scoreForFile(files, f -> f.getName().endsWith(".xcodeproj") || f.getName().endsWith(".xcworkspace"), 30);
-        score += scoreForFile(files, f -> f.getName().equals("Info.plist"), 20);
-        score += scoreForFile(files, f -> f.getName().equals("AppDelegate.swift") || f.getName().equals("App.swift"), 20);
-        score += scoreForFile(files, f -> f.getName().equals("Package.swift"), 20);
-        score += scoreForFile(files, f -> f.getPath().contains("/Views/") || f.getPath().contains("/Models/") || f.getPath().contains("/ViewModels/"), 15);
-        score += scoreForFileCount(files, f -> f.getName().endsWith(".swift"), 15, 5);
-        score += scoreForFile(files, f -> f.getName().endsWith(".storyboard") || f.getName().endsWith(".xib"), 10);
-        return new PlatformScoreDTO("iOS", score);
-    }
-
-    private PlatformScoreDTO calculateReactNativeScore(List<RepoFile> files) {
-        int score = 0;
-        score += scoreForFile(files, f -> f.getName().equals("package.json"), 20);
-        score += scoreForFile(files, f -> f.getName().equals("App.js") || f.getName().equals("App.tsx"), 20);
-        score += scoreForFile(files, f -> f.getPath().startsWith("android/") && files.stream().anyMatch(i -> i.getPath().startsWith("ios/")), 30);
-        score += scoreForFileCount(files, f -> f.getName().endsWith(".js") || f.getName().endsWith(".tsx"), 15, 5);
-        score += scoreForFile(files, f -> f.getPath().contains("/components/") || f.getPath().contains("/screens/"), 15);
-        return new PlatformScoreDTO("React Native", score);
-    }
-
-    private PlatformScoreDTO calculateFlutterScore(List<RepoFile> files) {
-        int score = 0;
-        score += scoreForFile(files, f -> f.getName().equals("pubspec.yaml"), 40);
-        score += scoreForFile(files, f -> f.getPath().contains("/lib/main.dart"), 40);
-        score += scoreForFile(files, f -> f.getName().equals("flutter.gradle"), 30);
-        score += scoreForFileCount(files, f -> f.getName().endsWith(".dart"), 20, 5);
-        score += scoreForFile(files, f -> f.getPath().contains("/lib/widgets/") || f.getPath().contains("/lib/screens/"), 20);
-        score += scoreForFile(files, f -> f.getPath().contains("/test/"), 10);
-        score += scoreForFile(files, f -> f.getName().equals(".metadata"), 10);
-        score += scoreForFile(files, f -> f.getName().equals("analysis_options.yaml"), 10);
-        score += scoreForFile(files, f -> f.getPath().startsWith("android/") && files.stream().anyMatch(i -> i.getPath().startsWith("ios/")), 20);
-        return new PlatformScoreDTO("Flutter", score);
-    }
-
-    private int scoreForFile(List<RepoFile> files, Predicate<RepoFile> predicate, int score) {
-        return files.stream().anyMatch(predicate) ? score : 0;
-    }
-
-    private int scoreForFileCount(List<RepoFile> files, Predicate<RepoFile> predicate, int score, int threshold) {
-        return files.stream().filter(predicate).count() > threshold ? score : 0;
-    }
-}
\ No newline at end of file
+    private static FileMatcher names(String... names) {
+        FileMatcher matcher = new FileMatcher();
+        matcher.names.addAll(Arrays.asList(names));
+        return matcher;
+    }
+
+    // Extensions are matched against the text after the last '.', equivalent to endsWith("." + extension)
+    private static FileMatcher extensions(String... extensions) {
+        FileMatcher matcher = new FileMatcher();
+        matcher.extensions.addAll(Arrays.asList(extensions));
+        return matcher;
+    }
+
+    private static FileMatcher pathContains(String... segments) {
+        FileMatcher matcher = new FileMatcher();
+        matcher.predicateKeys.add("contains" + Arrays.toString(segments));
+        matcher.predicates.add((name, path) -> {
+            for (String segment : segments) {
+                if (path.contains(segment)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+        return matcher;
+    }
+
+    private static FileMatcher pathStartsWith(String prefix) {
+        FileMatcher matcher = new FileMatcher();
+        matcher.predicateKeys.add("startsWith[" + prefix + "]");
+        matcher.predicates.add((name, path) -> path.startsWith(prefix));
+        return matcher;
+    }
+
+    private static FileMatcher both(FileMatcher first, FileMatcher second) {
+        FileMatcher matcher = new FileMatcher();
+        matcher.predicateKeys.add("both[" + first.key() + "," + second.key() + "]");
+        matcher.predicates.add((name, path) -> first.matches(name, path) && second.matches(name, path));
+        return matcher;
+    }
+
+    private static final class FileMatcher {
+        private final Set<String> names = new HashSet<>();
+        private final Set<String> extensions = new HashSet<>();
+        private final List<BiPredicate<String, String>> predicates = new ArrayList<>();
+        // What each predicate tests, as lambdas cannot be compared
+        private final List<String> predicateKeys = new ArrayList<>();
+
+        FileMatcher or(FileMatcher other) {
+            FileMatcher matcher = new FileMatcher();
+            for (FileMatcher source : List.of(this, other)) {
+                matcher.names.addAll(source.names);
+                matcher.extensions.addAll(source.extensions);
+                matcher.predicates.addAll(source.predicates);
+                matcher.predicateKeys.addAll(source.predicateKeys);
+            }
+            return matcher;
+        }
+
+        String key() {
+            return "names" + new TreeSet<>(names) + "extensions" + new TreeSet<>(extensions) + predicateKeys;
+        }
+
+        boolean matches(String name, String path) {
+            if (names.contains(name) || extensions.contains(extensionOf(name))) {
+                return true;
+            }
+            for (BiPredicate<String, String> predicate : predicates) {
+                if (predicate.test(name, path)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static String extensionOf(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 ? name.substring(dot + 1) : null;
+    }
+
+    /**
+     * A rule adds its weight to a platform once each of its clauses has matched at least
+     * {@code minMatches} files. Clauses are what the single pass over the file list evaluates.
+     */
+    private record Rule(int platform, int weight, int minMatches, int[] clauses) {
+    }
+
+    private record PredicateClause(int clause, BiPredicate<String, String> predicate) {
+    }
+
+    private static final class RuleSetBuilder {
+        private final List<String> platformNames = new ArrayList<>();
+        private final List<Boolean> clampAtZero = new ArrayList<>();
+        private final List<Rule> rules = new ArrayList<>();
+        private final List<FileMatcher> clauses = new ArrayList<>();
+
+        RuleSetBuilder platform(String name, boolean clampScoreAtZero) {
+            platformNames.add(name);
+            clampAtZero.add(clampScoreAtZero);
+            return this;
+        }
+
+        RuleSetBuilder any(int weight, FileMatcher matcher) {
+            return addRule(weight, 1, matcher);
+        }
+
+        RuleSetBuilder moreThan(int threshold, int weight, FileMatcher matcher) {
+            return addRule(weight, threshold + 1, matcher);
+        }
+
+        RuleSetBuilder allPresent(int weight, FileMatcher... matchers) {
+            return addRule(weight, 1, matchers);
+        }
+
+        private RuleSetBuilder addRule(int weight, int minMatches, FileMatcher... matchers) {
+            int[] clauseIds = new int[matchers.length];
+            for (int i = 0; i < matchers.length; i++) {
+                clauseIds[i] = clauses.size();
+                clauses.add(matchers[i]);
+            }
+            rules.add(new Rule(platformNames.size() - 1, weight, minMatches, clauseIds));
+            return this;
+        }
+
+        CompiledRules compile() {
+            StringBuilder definition = new StringBuilder();
+            for (int platform = 0; platform < platformNames.size(); platform++) {
+                definition.append(platformNames.get(platform)).append(clampAtZero.get(platform)).append(';');
+            }
+            for (Rule rule : rules) {
+                definition.append(rule.platform()).append(',').append(rule.weight()).append(',')
+                        .append(rule.minMatches()).append(Arrays.toString(rule.clauses())).append(';');
+            }
+            for (FileMatcher clause : clauses) {
+                definition.append(clause.key()).append(';');
+            }
+
+            Map<String, List<Integer>> byName = new HashMap<>();
+            Map<String, List<Integer>> byExtension = new HashMap<>();
+            List<PredicateClause> predicateClauses = new ArrayList<>();
+            int[] clauseTargets = new int[clauses.size()];
+
+            for (Rule rule : rules) {
+                for (int clause : rule.clauses()) {
+                    clauseTargets[clause] = rule.minMatches();
+                }
+            }
+            for (int clause = 0; clause < clauses.size(); clause++) {
+                FileMatcher matcher = clauses.get(clause);
+                for (String name : matcher.names) {
+                    byName.computeIfAbsent(name, k -> new ArrayList<>()).add(clause);
+                }
+                for (String extension : matcher.extensions) {
+                    byExtension.computeIfAbsent(extension, k -> new ArrayList<>()).add(clause);
+                }
+                for (BiPredicate<String, String> predicate : matcher.predicates) {
+                    predicateClauses.add(new PredicateClause(clause, predicate));
+                }
+            }
+
+            return new CompiledRules(
+                    platformNames.toArray(new String[0]),
+                    clampAtZero.stream().mapToInt(clamp -> clamp ? 1 : 0).toArray(),
+                    rules.toArray(new Rule[0]),
+                    clauseTargets,
+                    toIndex(byName),
+                    toIndex(byExtension),
+                    predicateClauses.toArray(new PredicateClause[0]),
+                    fingerprint(definition.toString()));
+        }
+
+        private static String fingerprint(String definition) {
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(definition.getBytes(StandardCharsets.UTF_8));
+                return HexFormat.of().formatHex(hash, 0, 8);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+
+        private static Map<String, int[]> toIndex(Map<String, List<Integer>> clausesByKey) {
+            Map<String, int[]> index = new HashMap<>();
+            clausesByKey.forEach((key, ids) -> index.put(key, ids.stream().mapToInt(Integer::intValue).toArray()));
+            return index;
+        }
+    }
+
+    private record CompiledRules(String[] platforms,
+                                 int[] clampAtZero,
+                                 Rule[] rules,
+                                 int[] clauseTargets,
+                                 Map<String, int[]> clausesByName,
+                                 Map<String, int[]> clausesByExtension,
+                                 PredicateClause[] predicateClauses,
+                                 String fingerprint) {
+
+        PlatformScoreDTO[] score(List<RepoFile> files) {
+            int[] matches = new int[clauseTargets.length];
+            int[] lastFile = new int[clauseTargets.length];
+            Arrays.fill(lastFile, -1);
+
+            int fileIndex = 0;
+            for (RepoFile file : files) {
+                String name = file.getName();
+                String path = file.getPath();
+
+                record(clausesByName.get(name), fileIndex, matches, lastFile);
+                String extension = extensionOf(name);
+                if (extension != null) {
+                    record(clausesByExtension.get(extension), fileIndex, matches, lastFile);
+                }
+                for (PredicateClause predicateClause : predicateClauses) {
+                    int clause = predicateClause.clause();
+                    if (matches[clause] < clauseTargets[clause]
+                            && lastFile[clause] != fileIndex
+                            && predicateClause.predicate().test(name, path)) {
+                        lastFile[clause] = fileIndex;
+                        matches[clause]++;
+                    }
+                }
+                fileIndex++;
+            }
+
+            return totals(matches);
+        }
+
+        // Unlike score, counts every match, so a removed file can be taken off again
+        void apply(int[] matches, String path, int delta) {
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            BitSet matched = new BitSet(matches.length);
+
+            int[] byName = clausesByName.get(name);
+            if (byName != null) {
+                for (int clause : byName) {
+                    matched.set(clause);
+                }
+            }
+            String extension = extensionOf(name);
+            int[] byExtension = extension != null ? clausesByExtension.get(extension) : null;
+            if (byExtension != null) {
+                for (int clause : byExtension) {
+                    matched.set(clause);
+                }
+            }
+            for (PredicateClause predicateClause : predicateClauses) {
+                if (!matched.get(predicateClause.clause()) && predicateClause.predicate().test(name, path)) {
+                    matched.set(predicateClause.clause());
+                }
+            }
+            for (int clause = matched.nextSetBit(0); clause >= 0; clause = matched.nextSetBit(clause + 1)) {
+                matches[clause] += delta;
+            }
+        }
+
+        PlatformScoreDTO[] totals(int[] matches) {
+            int[] totals = new int[platforms.length];
+            for (Rule rule : rules) {
+                if (isSatisfied(rule, matches)) {
+                    totals[rule.platform()] += rule.weight();
+                }
+            }
+
+            PlatformScoreDTO[] scores = new PlatformScoreDTO[platforms.length];
+            for (int platform = 0; platform < platforms.length; platform++) {
+                int total = clampAtZero[platform] == 1 ? Math.max(totals[platform], 0) : totals[platform];
+                scores[platform] = new PlatformScoreDTO(platforms[platform], total);
+            }
+            return scores;
+        }
+
+        private void record(int[] clauses, int fileIndex, int[] matches, int[] lastFile) {
+            if (clauses == null) {
+                return;
+            }
+            for (int clause : clauses) {
+                if (lastFile[clause] != fileIndex) {
+                    lastFile[clause] = fileIndex;
+                    matches[clause]++;
+                }
+            }
+        }
+
+        private boolean isSatisfied(Rule rule, int[] matches) {
+            for (int clause : rule.clauses()) {
+                if (matches[clause] < rule.minMatches()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
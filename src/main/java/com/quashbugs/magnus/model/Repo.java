@@ -7,6 +7,7 @@ import lombok.NoArgsConstructor;
 import lombok.experimental.SuperBuilder;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.mapping.DBRef;
 import org.springframework.data.mongodb.core.mapping.Document;
 
@@ -18,6 +19,9 @@ import java.time.LocalDateTime;
 @AllArgsConstructor
 @Document(collection = "repositories")
 @TypeAlias("repository")
+@CompoundIndex(name = "primary_analysis_id", def = "{ 'primaryBranchDetails.analysisId': 1 }", sparse = true)
+@CompoundIndex(name = "secondary_analysis_id", def = "{ 'secondaryBranchDetails.analysisId': 1 }", sparse = true)
+@CompoundIndex(name = "organisation_name", def = "{ 'organisation': 1, 'name': 1 }")
 public class Repo {
     @Id
     private String id;
@@ -33,4 +37,6 @@ public class Repo {
     private String platform;
     private RepoState state;
     private String appSummary;
+    // Incremented on every save, lets clients ask for only what changed since the version they hold
+    private long stateVersion;
 }
@@ -0,0 +1,33 @@
+package com.quashbugs.magnus.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+/**
+ * Where detection of a repo's default branch last got to: the commit and its tree, whose paths are
+ * kept as a {@link RepoFileTree}, and the detector's clause counts for them, so a push can be
+ * applied to the last result instead of listing the repo again.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "repo_file_indexes")
+public class RepoFileIndex {
+    // The repo id; there is one index per repo
+    @Id
+    private String id;
+    private String branch;
+    private String commitSha;
+    private String treeSha;
+    private int[] clauseCounts;
+    // Clause counts are only reused while the detector rules have not changed
+    private String ruleSetFingerprint;
+    private LocalDateTime updatedAt;
+}
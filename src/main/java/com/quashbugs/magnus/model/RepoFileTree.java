@@ -0,0 +1,36 @@
+package com.quashbugs.magnus.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+/**
+ * The file paths of one git tree of a repo, encoded as a compact blob. A tree SHA names its
+ * content, so a listed tree never goes stale and is reused by any later detection of the same tree.
+ * A derived tree was rebuilt by replaying pushed commits onto an earlier one; it only seeds the
+ * next replay and is never taken for the real listing of its SHA.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "repo_file_trees")
+@CompoundIndex(name = "repoId_treeSha", def = "{ 'repoId': 1, 'treeSha': 1 }", unique = true)
+public class RepoFileTree {
+    @Id
+    private String id;
+    private String repoId;
+    private String treeSha;
+    // How data is encoded, e.g. "front-coded+gzip"
+    private String encoding;
+    private int pathCount;
+    private boolean derived;
+    private byte[] data;
+    private LocalDateTime createdAt;
+}
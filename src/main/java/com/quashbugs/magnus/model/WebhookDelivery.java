@@ -0,0 +1,42 @@
+package com.quashbugs.magnus.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "webhook_deliveries")
+@CompoundIndexes({
+        // Redispatch of deliveries left RECEIVED, and recovery of PROCESSING ones with expired leases
+        @CompoundIndex(name = "state_receivedAt", def = "{ 'state': 1, 'receivedAt': 1 }"),
+        @CompoundIndex(name = "state_leaseExpiresAt", def = "{ 'state': 1, 'leaseExpiresAt': 1 }")
+})
+public class WebhookDelivery {
+    @Id
+    private String id;
+    private String eventType;
+    // Dropped once the delivery is processed
+    private String payload;
+    private WebhookDeliveryState state;
+    private int attempts;
+    // The node processing the delivery, and until when it holds it without renewing
+    private String processingOwner;
+    private LocalDateTime processingStartedAt;
+    private LocalDateTime leaseExpiresAt;
+    private String error;
+    private LocalDateTime receivedAt;
+    // Finished deliveries are kept a week so a redelivery by GitHub is still recognised
+    @Indexed(expireAfter = "7d")
+    private LocalDateTime processedAt;
+}
@@ -0,0 +1,9 @@
+package com.quashbugs.magnus.repository;
+
+import com.quashbugs.magnus.model.ProcessedEvent;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface ProcessedEventRepository extends MongoRepository<ProcessedEvent, String> {
+}
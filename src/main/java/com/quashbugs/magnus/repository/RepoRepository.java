@@ -3,6 +3,7 @@ package com.quashbugs.magnus.repository;
 import com.quashbugs.magnus.model.Organisation;
 import com.quashbugs.magnus.model.Repo;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -13,4 +14,8 @@ public interface RepoRepository extends MongoRepository<Repo, String> {
     Optional<List<Repo>> findAllByOrganisation(Organisation organisation);
 
     Optional<Repo> findByNameAndOrganisation(String name, Organisation organisation);
+
+    // Served by the primary/secondary analysisId indexes declared on Repo
+    @Query("{ '$or': [ { 'primaryBranchDetails.analysisId': ?0 }, { 'secondaryBranchDetails.analysisId': ?0 } ] }")
+    Optional<Repo> findByBranchAnalysisId(String analysisId);
 }
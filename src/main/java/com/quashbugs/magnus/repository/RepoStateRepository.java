@@ -0,0 +1,148 @@
+package com.quashbugs.magnus.repository;
+
+import com.quashbugs.magnus.model.BranchAnalysisState;
+import com.quashbugs.magnus.model.Repo;
+import com.quashbugs.magnus.model.RepoState;
+import com.quashbugs.magnus.service.RepoStateIndex;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.function.Function;
+
+/**
+ * Repo and branch state transitions as targeted {@code $set} updates. Each transition only
+ * applies while the document is still in the state the caller expects (compare-and-set), so
+ * parallel callbacks cannot overwrite each other, and the rest of the document is never rewritten.
+ * Every successful transition is given a new {@code stateVersion} by the {@link RepoStateIndex}.
+ */
+@Repository
+public class RepoStateRepository {
+
+    private static final String PRIMARY_BRANCH = "primaryBranchDetails";
+    private static final String SECONDARY_BRANCH = "secondaryBranchDetails";
+
+    private final MongoTemplate mongoTemplate;
+    private final RepoStateIndex repoStateIndex;
+
+    @Autowired
+    public RepoStateRepository(MongoTemplate mongoTemplate, RepoStateIndex repoStateIndex) {
+        this.mongoTemplate = mongoTemplate;
+        this.repoStateIndex = repoStateIndex;
+    }
+
+    /**
+     * Moves the repo from {@code expected} to {@code next}; returns false if it was no longer in
+     * {@code expected}.
+     */
+    public boolean transitionState(String repoId, RepoState expected, RepoState next) {
+        Query query = new Query(Criteria.where("_id").is(repoId).and("state").is(expected));
+        return apply(query, new Update().set("state", next));
+    }
+
+    /**
+     * Records the result of mobile detection for a repo that is being analysed.
+     */
+    public boolean completeDetection(String repoId, boolean isMobile, String platform) {
+        Query query = new Query(Criteria.where("_id").is(repoId).and("state").is(RepoState.ANALYZING));
+        Update update = new Update()
+                .set("isMobile", isMobile)
+                .set("platform", platform)
+                .set("state", isMobile ? RepoState.COMPATIBLE : RepoState.INCOMPATIBLE);
+        return apply(query, update);
+    }
+
+    /**
+     * Records a fresh detection result for a repo that was already classified. A COMPATIBLE or
+     * INCOMPATIBLE repo follows the new result; a repo that is being or has been scanned keeps its
+     * state. Returns false if the repo is in neither group.
+     */
+    public boolean updateClassification(String repoId, boolean isMobile, String platform) {
+        Query detected = new Query(Criteria.where("_id").is(repoId)
+                .and("state").in(RepoState.COMPATIBLE, RepoState.INCOMPATIBLE));
+        Update update = new Update()
+                .set("isMobile", isMobile)
+                .set("platform", platform)
+                .set("state", isMobile ? RepoState.COMPATIBLE : RepoState.INCOMPATIBLE);
+        if (apply(detected, update)) {
+            return true;
+        }
+        Query scanned = new Query(Criteria.where("_id").is(repoId)
+                .and("state").in(RepoState.SCANNING, RepoState.SCANNED));
+        return apply(scanned, new Update().set("isMobile", isMobile).set("platform", platform));
+    }
+
+    /**
+     * Marks a repo whose detection has been given up on as failed, unless it already left the
+     * detection states.
+     */
+    public boolean failDetection(String repoId) {
+        Query query = new Query(Criteria.where("_id").is(repoId)
+                .and("state").in(RepoState.FETCHING, RepoState.ANALYZING));
+        return apply(query, new Update().set("state", RepoState.ERROR));
+    }
+
+    /**
+     * Marks the branch currently holding {@code analysisId} as scanned. Returns false if neither
+     * branch carries that analysis any more (e.g. a newer scan has been started).
+     */
+    public boolean markBranchScanned(String analysisId, String knowledgeGraphRef) {
+        return updateBranch(analysisId, branch -> new Update()
+                .set(branch + ".state", BranchAnalysisState.SCANNED)
+                .set(branch + ".lastAnalyzed", LocalDateTime.now())
+                .set(branch + ".knowledgeGraphRef", knowledgeGraphRef));
+    }
+
+    /**
+     * Marks the branch currently holding {@code analysisId}, and the repo, as failed.
+     */
+    public boolean markBranchError(String analysisId) {
+        return updateBranch(analysisId, branch -> new Update()
+                .set(branch + ".state", BranchAnalysisState.ERROR)
+                .set(branch + ".lastAnalyzed", LocalDateTime.now())
+                .set("state", RepoState.ERROR));
+    }
+
+    /**
+     * Promotes the repo to SCANNED once every configured branch is scanned. The check and the write
+     * are one atomic update, so of two branches finishing together exactly the later one succeeds.
+     */
+    public boolean markScannedIfAllBranchesScanned(String repoId, String appSummary) {
+        Query query = new Query(new Criteria().andOperator(
+                Criteria.where("_id").is(repoId),
+                Criteria.where("state").ne(RepoState.SCANNED),
+                Criteria.where(PRIMARY_BRANCH + ".state").is(BranchAnalysisState.SCANNED),
+                new Criteria().orOperator(
+                        Criteria.where(SECONDARY_BRANCH).is(null),
+                        Criteria.where(SECONDARY_BRANCH + ".state").is(BranchAnalysisState.SCANNED))));
+        Update update = new Update()
+                .set("state", RepoState.SCANNED)
+                .set("appSummary", appSummary);
+        return apply(query, update);
+    }
+
+    private boolean updateBranch(String analysisId, Function<String, Update> branchUpdate) {
+        for (String branch : new String[]{PRIMARY_BRANCH, SECONDARY_BRANCH}) {
+            Query query = new Query(Criteria.where(branch + ".analysisId").is(analysisId));
+            if (apply(query, branchUpdate.apply(branch))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean apply(Query query, Update update) {
+        // Branch transitions match on the analysis id, so the repo id comes back from the update
+        query.fields().include("_id");
+        Repo updated = mongoTemplate.findAndModify(query, update, Repo.class);
+        if (updated == null) {
+            return false;
+        }
+        repoStateIndex.refresh(updated.getId());
+        return true;
+    }
+}
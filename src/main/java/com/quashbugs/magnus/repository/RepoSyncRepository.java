@@ -0,0 +1,126 @@
+package com.quashbugs.magnus.repository;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.quashbugs.magnus.dto.RepoStatusDTO;
+import com.quashbugs.magnus.model.DetectionJob;
+import com.quashbugs.magnus.model.DetectionJobState;
+import com.quashbugs.magnus.model.Organisation;
+import com.quashbugs.magnus.model.Repo;
+import com.quashbugs.magnus.model.RepoState;
+import com.quashbugs.magnus.service.RepoStateIndex;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Synchronises the stored repos of an organisation with the list reported by the VCS provider
+ * using a fixed number of round trips: one bulk upsert keyed on (organisation, name), a read of
+ * the repos and of their running detection jobs, one update that queues changed repos for
+ * detection again, one bulk write of new state versions, one read of the result, and one read and
+ * one delete for removed repos.
+ */
+@Repository
+public class RepoSyncRepository {
+
+    // States a sync leaves alone: classified already, or being classified right now
+    private static final List<RepoState> SETTLED_STATES =
+            List.of(RepoState.COMPATIBLE, RepoState.INCOMPATIBLE, RepoState.ANALYZING);
+
+    private final MongoTemplate mongoTemplate;
+    private final RepoStateIndex repoStateIndex;
+
+    public record UpsertResult(int inserted, int updated, List<Repo> repos) {
+    }
+
+    @Autowired
+    public RepoSyncRepository(MongoTemplate mongoTemplate, RepoStateIndex repoStateIndex) {
+        this.mongoTemplate = mongoTemplate;
+        this.repoStateIndex = repoStateIndex;
+    }
+
+    /**
+     * Inserts or updates the basic info of the given repos. New repos start in FETCHING, as do
+     * existing ones that have not been classified as COMPATIBLE or INCOMPATIBLE yet. A repo that is
+     * being analysed, or whose detection job is running, keeps its state so the running detection
+     * can still record its result. Returns the stored repos after the sync.
+     */
+    public UpsertResult upsertAll(Organisation organisation, List<Repo> repos) {
+        if (repos.isEmpty()) {
+            return new UpsertResult(0, 0, List.of());
+        }
+
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Repo.class);
+        for (Repo repo : repos) {
+            Query key = new Query(where("organisation").is(organisation).and("name").is(repo.getName()));
+            Update update = new Update()
+                    .set("isPrivate", repo.isPrivate())
+                    .set("language", repo.getLanguage())
+                    .set("createdAt", repo.getCreatedAt())
+                    .setOnInsert("organisation", organisation)
+                    .setOnInsert("state", RepoState.FETCHING);
+            bulk.upsert(key, update);
+        }
+        BulkWriteResult result = bulk.execute();
+
+        List<String> names = repos.stream().map(Repo::getName).toList();
+        Query idQuery = new Query(where("organisation").is(organisation).and("name").in(names));
+        idQuery.fields().include("_id");
+        List<String> ids = mongoTemplate.find(idQuery, Repo.class).stream().map(Repo::getId).toList();
+        Query runningQuery = new Query(where("repoId").in(ids).and("state").is(DetectionJobState.RUNNING));
+        runningQuery.fields().include("repoId");
+        List<String> detecting = mongoTemplate.find(runningQuery, DetectionJob.class).stream()
+                .map(DetectionJob::getRepoId)
+                .toList();
+        mongoTemplate.updateMulti(
+                new Query(where("_id").in(ids).nin(detecting).and("state").nin(SETTLED_STATES)),
+                new Update().set("state", RepoState.FETCHING),
+                Repo.class);
+
+        long firstVersion = repoStateIndex.allocateVersions(names.size());
+        BulkOperations versions = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Repo.class);
+        for (int i = 0; i < names.size(); i++) {
+            long version = firstVersion + i;
+            versions.updateOne(
+                    new Query(where("organisation").is(organisation).and("name").is(names.get(i))
+                            .andOperator(RepoStateIndex.olderThan(version))),
+                    new Update().set("stateVersion", version));
+        }
+        versions.execute();
+
+        // The organisation is already at hand; leaving it out avoids resolving one DBRef per repo
+        Query storedQuery = new Query(where("organisation").is(organisation).and("name").in(names));
+        storedQuery.fields().exclude("organisation");
+        List<Repo> stored = mongoTemplate.find(storedQuery, Repo.class);
+        stored.forEach(repo -> {
+            repo.setOrganisation(organisation);
+            repoStateIndex.update(RepoStatusDTO.from(repo));
+        });
+
+        // Matched repos whose info was already current are not counted as updated
+        return new UpsertResult(result.getUpserts().size(), result.getModifiedCount(), stored);
+    }
+
+    /**
+     * Deletes the repos of the organisation whose names are not in {@code currentNames}, and drops
+     * them from the status index.
+     */
+    public long removeAllExcept(Organisation organisation, Collection<String> currentNames) {
+        Query staleQuery = new Query(where("organisation").is(organisation).and("name").nin(currentNames));
+        staleQuery.fields().include("_id");
+        List<String> staleIds = mongoTemplate.find(staleQuery, Repo.class).stream().map(Repo::getId).toList();
+        if (staleIds.isEmpty()) {
+            return 0;
+        }
+        long removed = mongoTemplate.remove(new Query(where("_id").in(staleIds)), Repo.class).getDeletedCount();
+        repoStateIndex.remove(staleIds);
+        return removed;
+    }
+}
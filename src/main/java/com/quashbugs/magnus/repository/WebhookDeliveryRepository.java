@@ -0,0 +1,18 @@
+package com.quashbugs.magnus.repository;
+
+import com.quashbugs.magnus.model.WebhookDelivery;
+import com.quashbugs.magnus.model.WebhookDeliveryState;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface WebhookDeliveryRepository extends MongoRepository<WebhookDelivery, String> {
+
+    List<WebhookDelivery> findByStateAndReceivedAtBefore(WebhookDeliveryState state, LocalDateTime receivedAt);
+
+    List<WebhookDelivery> findByState(WebhookDeliveryState state);
+
+}
@@ -11,10 +11,13 @@ import com.quashbugs.magnus.model.*;
 import com.quashbugs.magnus.repository.BitbucketRepoRepository;
 import com.quashbugs.magnus.repository.MemberRepository;
 import com.quashbugs.magnus.repository.OrganisationRepository;
+import jakarta.annotation.PostConstruct;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.http.*;
 import org.springframework.stereotype.Service;
 import org.springframework.util.LinkedMultiValueMap;
@@ -37,26 +40,33 @@ public class BitbucketService implements VcsAdapter {
     @Value("${spring.bitbucket.secret}")
     private String bitbucket_secret;
 
-    RestTemplate restTemplate = new RestTemplate();
-    private final ExecutorService executorService = Executors.newFixedThreadPool(10);
-    //    private final ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
+    private final RestTemplate restTemplate;
+    private static final String VCS_PROVIDER = "bitbucket";
+    private final AsyncTaskExecutor fetchExecutor;
     private final ObjectMapper objectMapper = new ObjectMapper();
 
     private final OrganisationRepository organisationRepository;
     private final MemberRepository memberRepository;
     private final BitbucketRepoRepository bitbucketRepoRepository;
     private final MobileDetectorService mobileDetectorService;
+    private final DetectionJobQueue detectionJobQueue;
     private static final Logger LOGGER = LoggerFactory.getLogger(BitbucketService.class);
 
     @Autowired
     public BitbucketService(MemberRepository memberRepository,
                             OrganisationRepository organisationRepository,
                             BitbucketRepoRepository bitbucketRepoRepository,
-                            MobileDetectorService mobileDetectorService) {
+                            MobileDetectorService mobileDetectorService,
+                            RestTemplate restTemplate,
+                            DetectionJobQueue detectionJobQueue,
+                            @Qualifier("bitbucketFetchExecutor") AsyncTaskExecutor fetchExecutor) {
         this.memberRepository = memberRepository;
         this.organisationRepository = organisationRepository;
         this.bitbucketRepoRepository = bitbucketRepoRepository;
         this.mobileDetectorService = mobileDetectorService;
+        this.restTemplate = restTemplate;
+        this.detectionJobQueue = detectionJobQueue;
+        this.fetchExecutor = fetchExecutor;
     }
 
     public HashMap<String, Object> getRefreshedTokens(String refreshToken) {
@@ -321,12 +331,6 @@ public class BitbucketService implements VcsAdapter {
     public void saveRepos(User user, HashMap<String, Object> repoData) {
         try {
             Member member = memberRepository.findByUser(user).orElseThrow(() -> new RuntimeException("Member not found"));
-            String accessToken;
-            if (LocalDateTime.now().isAfter(member.getVcsTokenExpiry())) {
-                accessToken = newTokens(member);
-            } else {
-                accessToken = member.getVcsAccessToken();
-            }
 
             List<BitbucketRepo> newBitbucketRepos = new ArrayList<>();
             List<HashMap<String, Object>> repos = (List<HashMap<String, Object>>) repoData.get("repos");
@@ -344,18 +348,13 @@ public class BitbucketService implements VcsAdapter {
                     repository.setState(RepoState.FETCHING);
                     BitbucketRepo savedRepo = bitbucketRepoRepository.save(repository);
                     newBitbucketRepos.add(savedRepo);
-
-                    CompletableFuture.runAsync(() -> {
-                        try {
-                            processRepo(organisation.getSlug(), savedRepo, accessToken);
-                        } catch (Exception e) {
-                            LOGGER.error("Error processing repo: {}", repository.getName(), e);
-                            updateRepoState(savedRepo, RepoState.ERROR);
-                        }
-                    }, executorService);
                 }
             }
             bitbucketRepoRepository.saveAll(newBitbucketRepos);
+            // Queued only after the final save above, which would otherwise overwrite the detection state
+            for (BitbucketRepo savedRepo : newBitbucketRepos) {
+                detectionJobQueue.enqueue(VCS_PROVIDER, savedRepo.getId(), member.getId());
+            }
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -370,29 +369,47 @@ public class BitbucketService implements VcsAdapter {
         repository.setCreatedAt(LocalDateTime.now());
     }
 
-    private void processRepo(String workspace, BitbucketRepo repo, String accessToken) {
-        try {
-            if (repo.getState() == RepoState.COMPATIBLE ||
-                    repo.getState() == RepoState.INCOMPATIBLE) {
-                return;
-            }
+    @PostConstruct
+    public void registerDetectionHandler() {
+        detectionJobQueue.register(VCS_PROVIDER, this::detectRepo);
+    }
+
+    private void detectRepo(DetectionJob job) throws Exception {
+        BitbucketRepo repo = bitbucketRepoRepository.findById(job.getRepoId()).orElse(null);
+        if (repo == null) {
+            LOGGER.info("Skipping detection of repo {}, it no longer exists", job.getRepoId());
+            return;
+        }
+        Member member = memberRepository.findById(job.getMemberId()).orElseThrow(() -> new RuntimeException("Member not found"));
+        String workspace = ((BitbucketOrganisation) repo.getOrganisation()).getSlug();
+        processRepo(workspace, repo, accessToken(member));
+    }
+
+    private String accessToken(Member member) {
+        if (LocalDateTime.now().isAfter(member.getVcsTokenExpiry())) {
+            return newTokens(member);
+        }
+        return member.getVcsAccessToken();
+    }
 
-            updateRepoState(repo, RepoState.ANALYZING);
+    // Failures are left to the detection queue, which retries and marks the repo ERROR on the last attempt
+    private void processRepo(String workspace, BitbucketRepo repo, String accessToken) throws Exception {
+        if (repo.getState() == RepoState.COMPATIBLE ||
+                repo.getState() == RepoState.INCOMPATIBLE) {
+            return;
+        }
 
-            List<RepoFile> files = getAllRepositoryFiles(workspace, repo.getSlug(), accessToken);
+        updateRepoState(repo, RepoState.ANALYZING);
 
-            MobileProjectInfoDTO mobileInfo = mobileDetectorService.analyzeMobileProject(files);
+        List<RepoFile> files = getAllRepositoryFiles(workspace, repo.getSlug(), accessToken);
 
-            repo.setMobile(mobileInfo.isMobile());
-            repo.setPlatform(mobileInfo.getPlatform());
+        MobileProjectInfoDTO mobileInfo = mobileDetectorService.analyzeMobileProject(files);
 
-            RepoState newState = mobileInfo.isMobile() ? RepoState.COMPATIBLE : RepoState.INCOMPATIBLE;
-            updateRepoState(repo, newState);
+        repo.setMobile(mobileInfo.isMobile());
+        repo.setPlatform(mobileInfo.getPlatform());
 
-        } catch (Exception e) {
-            LOGGER.error("Error processing repo: {}", repo.getName(), e);
-            updateRepoState(repo, RepoState.ERROR);
-        }
+        RepoState newState = mobileInfo.isMobile() ? RepoState.COMPATIBLE : RepoState.INCOMPATIBLE;
+        updateRepoState(repo, newState);
     }
 
     private void updateRepoState(BitbucketRepo repository, RepoState state) {
@@ -421,7 +438,7 @@ public class BitbucketService implements VcsAdapter {
 
             for (int i = 0; i < 10 && !urlsToProcess.isEmpty(); i++) {
                 String url = urlsToProcess.poll();
-                futures.add(CompletableFuture.runAsync(() -> processUrl(url, token, allFiles, urlsToProcess), executorService));
+                futures.add(CompletableFuture.runAsync(() -> processUrl(url, token, allFiles, urlsToProcess), fetchExecutor));
             }
 
             CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
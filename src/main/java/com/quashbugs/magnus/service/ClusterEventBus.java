@@ -0,0 +1,226 @@
+package com.quashbugs.magnus.service;
+
+import com.quashbugs.magnus.model.ClusterEventBatch;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.CollectionOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.messaging.DefaultMessageListenerContainer;
+import org.springframework.data.mongodb.core.messaging.MessageListener;
+import org.springframework.data.mongodb.core.messaging.MessageListenerContainer;
+import org.springframework.data.mongodb.core.messaging.TailableCursorRequest;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Relays SSE and WebSocket broadcasts between Magnus nodes. Each node delivers its own events
+ * locally and appends them, in batches, to the capped cluster_events collection; every other
+ * node tails that collection and hands the messages to the listeners of the matching channel.
+ * Batches are stamped with the Mongo server's clock, and tailing starts from the server's time,
+ * so clock skew between nodes does not drop or replay events.
+ */
+@Service
+public class ClusterEventBus {
+
+    public static final String SSE_CHANNEL = "sse";
+    public static final String WEBSOCKET_CHANNEL = "ws";
+    public static final String REPO_STATE_CHANNEL = "repo_state";
+
+    @Value("${spring.cluster.events.enabled:false}")
+    private boolean enabled;
+
+    @Value("${spring.cluster.events.batch.size:50}")
+    private int batchSize;
+
+    @Value("${spring.cluster.events.batch.delay.ms:50}")
+    private long batchDelayMs;
+
+    @Value("${spring.cluster.events.collection.size.bytes:16777216}")
+    private long collectionSizeBytes;
+
+    // Messages held while Mongo cannot be written to; beyond this new messages are dropped
+    @Value("${spring.cluster.events.max.pending:10000}")
+    private int maxPending;
+
+    private final MongoTemplate mongoTemplate;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final ConcurrentLinkedQueue<ClusterEventBatch.Message> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    // A batch whose insert failed; sent again before anything else
+    private List<ClusterEventBatch.Message> unsentBatch;
+    private final Map<String, List<Consumer<ClusterEventBatch.Message>>> listeners = new ConcurrentHashMap<>();
+    private ScheduledExecutorService flusher;
+    private MessageListenerContainer listenerContainer;
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClusterEventBus.class);
+
+    @Autowired
+    public ClusterEventBus(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+
+        String collection = mongoTemplate.getCollectionName(ClusterEventBatch.class);
+        if (!mongoTemplate.collectionExists(collection)) {
+            mongoTemplate.createCollection(ClusterEventBatch.class,
+                    CollectionOptions.empty().capped().size(collectionSizeBytes));
+            // A tailable cursor on an empty capped collection is closed immediately
+            mongoTemplate.insert(ClusterEventBatch.builder()
+                    .origin(nodeId)
+                    .createdAt(Instant.now())
+                    .messages(List.of())
+                    .build());
+        }
+
+        listenerContainer = new DefaultMessageListenerContainer(mongoTemplate);
+        MessageListener<Document, ClusterEventBatch> listener = message -> deliver(message.getBody());
+        listenerContainer.register(TailableCursorRequest.builder(listener)
+                        .collection(collection)
+                        .filter(tailFilter(serverTime()))
+                        .build(),
+                ClusterEventBatch.class);
+        listenerContainer.start();
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ClusterEventBus-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, batchDelayMs, batchDelayMs, TimeUnit.MILLISECONDS);
+        LOGGER.info("Cluster event bus started on node {}", nodeId);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (!enabled) {
+            return;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        listenerContainer.stop();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void register(String channel, Consumer<ClusterEventBatch.Message> listener) {
+        listeners.computeIfAbsent(channel, key -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    /**
+     * Queues a message for the other nodes. The caller is expected to have delivered it locally.
+     */
+    public void publish(ClusterEventBatch.Message message) {
+        if (!enabled) {
+            return;
+        }
+        if (pendingCount.incrementAndGet() > maxPending) {
+            pendingCount.decrementAndGet();
+            LOGGER.warn("Dropping cluster event on channel {}, {} events are waiting to be sent",
+                    message.getChannel(), maxPending);
+            return;
+        }
+        pending.add(message);
+        if (pendingCount.get() >= batchSize) {
+            flusher.execute(this::flush);
+        }
+    }
+
+    // Messages only leave the pending count once they are stored; a failed batch is kept and retried
+    synchronized void flush() {
+        try {
+            while (unsentBatch != null || !pending.isEmpty()) {
+                List<ClusterEventBatch.Message> batch = unsentBatch;
+                if (batch == null) {
+                    batch = new ArrayList<>(batchSize);
+                    ClusterEventBatch.Message message;
+                    while (batch.size() < batchSize && (message = pending.poll()) != null) {
+                        batch.add(message);
+                    }
+                    unsentBatch = batch;
+                }
+
+                insert(batch);
+                unsentBatch = null;
+                pendingCount.addAndGet(-batch.size());
+            }
+        } catch (Exception e) {
+            LOGGER.error("Error publishing cluster events, retrying {} of them: {}",
+                    pendingCount.get(), e.getMessage(), e);
+        }
+    }
+
+    // An upsert rather than an insert, so createdAt can be set by the server
+    private void insert(List<ClusterEventBatch.Message> batch) {
+        Update update = new Update()
+                .set("origin", nodeId)
+                .set("messages", batch)
+                .currentDate("createdAt");
+        mongoTemplate.upsert(query(where("_id").is(new ObjectId())), update, ClusterEventBatch.class);
+    }
+
+    Query tailFilter(Instant from) {
+        return query(where("origin").ne(nodeId).and("createdAt").gte(from));
+    }
+
+    private Instant serverTime() {
+        Document hello = mongoTemplate.executeCommand(new Document("hello", 1));
+        return hello.getDate("localTime").toInstant();
+    }
+
+    // The tail filter already skips this node's batches; checked again so a local event is never delivered twice
+    void deliver(ClusterEventBatch batch) {
+        if (batch == null || batch.getMessages() == null || nodeId.equals(batch.getOrigin())) {
+            return;
+        }
+        for (ClusterEventBatch.Message message : batch.getMessages()) {
+            message.setOrigin(batch.getOrigin());
+            List<Consumer<ClusterEventBatch.Message>> channelListeners = listeners.get(message.getChannel());
+            if (channelListeners == null) {
+                continue;
+            }
+            channelListeners.forEach(listener -> {
+                try {
+                    listener.accept(message);
+                } catch (Exception e) {
+                    LOGGER.error("Error delivering cluster event on channel {}: {}",
+                            message.getChannel(), e.getMessage(), e);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.quashbugs.magnus.service;
+
+import com.quashbugs.magnus.config.ExecutorRegistry;
+import com.quashbugs.magnus.config.RateLimitGovernor;
+import com.quashbugs.magnus.model.DetectionJob;
+import com.quashbugs.magnus.model.DetectionJobState;
+import com.quashbugs.magnus.repository.RepoStateRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Mongo-backed queue for repo mobile detection. Jobs are claimed with a lease that the owning node
+ * keeps extending while the job runs; a job whose lease runs out (node crashed or was restarted) is
+ * claimed again by any node. Failed runs are retried with exponential backoff, and the repo is only
+ * marked ERROR once the last attempt has failed.
+ */
+@Service
+public class DetectionJobQueue {
+
+    /**
+     * Runs detection for one job. Throwing marks the attempt as failed.
+     */
+    @FunctionalInterface
+    public interface Handler {
+        void detect(DetectionJob job) throws Exception;
+    }
+
+    @Value("${spring.detection.jobs.lease.seconds:60}")
+    private long leaseSeconds;
+
+    @Value("${spring.detection.jobs.max.attempts:5}")
+    private int maxAttempts;
+
+    @Value("${spring.detection.jobs.backoff.seconds:30}")
+    private long backoffSeconds;
+
+    @Value("${spring.detection.jobs.backoff.max.seconds:1800}")
+    private long maxBackoffSeconds;
+
+    private final MongoTemplate mongoTemplate;
+    private final RepoStateRepository repoStateRepository;
+    private final AsyncTaskExecutor detectionTaskExecutor;
+    private final int maxRunningJobs;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Map<String, Handler> handlers = new ConcurrentHashMap<>();
+    private final Set<String> runningJobs = ConcurrentHashMap.newKeySet();
+    private final Counter doneCounter;
+    private final Counter retriedCounter;
+    private final Counter failedCounter;
+    private volatile boolean accepting = true;
+    private static final Logger LOGGER = LoggerFactory.getLogger(DetectionJobQueue.class);
+
+    @Autowired
+    public DetectionJobQueue(MongoTemplate mongoTemplate,
+                             RepoStateRepository repoStateRepository,
+                             @Qualifier("detectionTaskExecutor") AsyncTaskExecutor detectionTaskExecutor,
+                             ExecutorRegistry executorRegistry,
+                             MeterRegistry meterRegistry) {
+        this.mongoTemplate = mongoTemplate;
+        this.repoStateRepository = repoStateRepository;
+        this.detectionTaskExecutor = detectionTaskExecutor;
+        this.maxRunningJobs = executorRegistry.concurrencyLimit("detection");
+
+        this.doneCounter = jobCounter(meterRegistry, "done");
+        this.retriedCounter = jobCounter(meterRegistry, "retried");
+        this.failedCounter = jobCounter(meterRegistry, "failed");
+        Gauge.builder("detection.jobs.running", runningJobs, Set::size)
+                .description("Detection jobs currently running on this node")
+                .register(meterRegistry);
+    }
+
+    private static Counter jobCounter(MeterRegistry meterRegistry, String outcome) {
+        return Counter.builder("detection.jobs")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    public void register(String vcsProvider, Handler handler) {
+        handlers.put(vcsProvider, handler);
+    }
+
+    /**
+     * Queues detection for a repo. A finished or failed job is reset and runs again; a running job
+     * is marked to run once more when it finishes, since the repo may have changed under it; a
+     * pending job is left alone.
+     */
+    public void enqueue(String vcsProvider, String repoId, String memberId) {
+        // The job can finish between the two steps below, hence the retry
+        for (int attempt = 0; attempt < 3; attempt++) {
+            if (resetFinished(vcsProvider, repoId, memberId)) {
+                return;
+            }
+            Query running = new Query(Criteria.where("repoId").is(repoId).and("state").is(DetectionJobState.RUNNING));
+            if (mongoTemplate.updateFirst(running, new Update().set("rerun", true), DetectionJob.class).getMatchedCount() > 0) {
+                LOGGER.debug("Detection of repo {} is running, it will run again when done", repoId);
+                return;
+            }
+            if (mongoTemplate.exists(new Query(Criteria.where("repoId").is(repoId)
+                    .and("state").is(DetectionJobState.PENDING)), DetectionJob.class)) {
+                LOGGER.debug("Detection of repo {} is already queued", repoId);
+                return;
+            }
+        }
+        LOGGER.warn("Could not queue detection of repo {}, its job kept changing state", repoId);
+    }
+
+    // Resets a finished or failed job, or creates the first one; false if the repo has an active job
+    private boolean resetFinished(String vcsProvider, String repoId, String memberId) {
+        LocalDateTime now = LocalDateTime.now();
+        Query query = new Query(Criteria.where("repoId").is(repoId)
+                .and("state").in(DetectionJobState.DONE, DetectionJobState.FAILED));
+        Update update = new Update()
+                .set("vcsProvider", vcsProvider)
+                .set("memberId", memberId)
+                .set("state", DetectionJobState.PENDING)
+                .set("attempts", 0)
+                .set("nextAttemptAt", now)
+                .set("leaseOwner", null)
+                .set("leaseExpiresAt", null)
+                .set("lastError", null)
+                .set("rerun", false)
+                .set("updatedAt", now)
+                .setOnInsert("createdAt", now);
+        try {
+            mongoTemplate.upsert(query, update, DetectionJob.class);
+            return true;
+        } catch (DuplicateKeyException e) {
+            // The unique repoId index rejected the insert: the repo already has an active job
+            return false;
+        }
+    }
+
+    /**
+     * Claims due jobs while this node has free workers.
+     */
+    @Scheduled(fixedDelayString = "${spring.detection.jobs.poll.ms:1000}")
+    public synchronized void poll() {
+        while (accepting && runningJobs.size() < maxRunningJobs) {
+            DetectionJob job = claim();
+            if (job == null) {
+                return;
+            }
+            runningJobs.add(job.getId());
+            try {
+                // Detection yields to interactive requests sharing the credential's rate limit
+                detectionTaskExecutor.execute(() -> RateLimitGovernor.runAsBackground(() -> run(job)));
+            } catch (TaskRejectedException e) {
+                runningJobs.remove(job.getId());
+                release(job);
+                LOGGER.warn("Detection workers are saturated, job {} was put back", job.getId());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Extends the lease of every job still running here, so other nodes do not reclaim them.
+     */
+    @Scheduled(fixedDelayString = "${spring.detection.jobs.heartbeat.ms:20000}")
+    public void heartbeat() {
+        if (runningJobs.isEmpty()) {
+            return;
+        }
+        Query query = new Query(Criteria.where("_id").in(runningJobs)
+                .and("leaseOwner").is(nodeId)
+                .and("state").is(DetectionJobState.RUNNING));
+        mongoTemplate.updateMulti(query, new Update().set("leaseExpiresAt", leaseDeadline()), DetectionJob.class);
+    }
+
+    /**
+     * Jobs that were running when a node went down keep their lease until it expires; put them back
+     * now so they are picked up right away rather than on the next lease check.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void reclaimExpiredLeases() {
+        Query query = new Query(Criteria.where("state").is(DetectionJobState.RUNNING)
+                .and("leaseExpiresAt").lt(LocalDateTime.now()));
+        Update update = new Update()
+                .set("state", DetectionJobState.PENDING)
+                .set("nextAttemptAt", LocalDateTime.now())
+                .set("leaseOwner", null)
+                .set("leaseExpiresAt", null);
+        long reclaimed = mongoTemplate.updateMulti(query, update, DetectionJob.class).getModifiedCount();
+        if (reclaimed > 0) {
+            LOGGER.info("Reclaimed {} detection jobs with expired leases", reclaimed);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        accepting = false;
+    }
+
+    // Takes the oldest due job, or one whose owner stopped renewing its lease
+    private DetectionJob claim() {
+        LocalDateTime now = LocalDateTime.now();
+        Query query = new Query(new Criteria().orOperator(
+                Criteria.where("state").is(DetectionJobState.PENDING).and("nextAttemptAt").lte(now),
+                Criteria.where("state").is(DetectionJobState.RUNNING).and("leaseExpiresAt").lt(now)))
+                .with(Sort.by(Sort.Direction.ASC, "nextAttemptAt"));
+        Update update = new Update()
+                .set("state", DetectionJobState.RUNNING)
+                .set("leaseOwner", nodeId)
+                .set("leaseExpiresAt", leaseDeadline())
+                .set("rerun", false)
+                .set("updatedAt", now)
+                .inc("attempts", 1);
+        return mongoTemplate.findAndModify(query, update,
+                FindAndModifyOptions.options().returnNew(true), DetectionJob.class);
+    }
+
+    private void run(DetectionJob job) {
+        try {
+            Handler handler = handlers.get(job.getVcsProvider());
+            if (handler == null) {
+                throw new IllegalStateException("No detection handler for provider " + job.getVcsProvider());
+            }
+            handler.detect(job);
+            if (finishOrRerun(job, new Update().set("state", DetectionJobState.DONE).set("lastError", null))) {
+                doneCounter.increment();
+            }
+        } catch (Exception e) {
+            fail(job, e);
+        } finally {
+            runningJobs.remove(job.getId());
+        }
+    }
+
+    private void fail(DetectionJob job, Exception e) {
+        if (job.getAttempts() >= maxAttempts) {
+            LOGGER.error("Detection of repo {} failed after {} attempts", job.getRepoId(), job.getAttempts(), e);
+            if (finishOrRerun(job, new Update()
+                    .set("state", DetectionJobState.FAILED)
+                    .set("lastError", e.getMessage()))) {
+                repoStateRepository.failDetection(job.getRepoId());
+            }
+            failedCounter.increment();
+            return;
+        }
+
+        Duration delay = backoff(job.getAttempts());
+        LOGGER.warn("Detection of repo {} failed (attempt {}), retrying in {}s: {}",
+                job.getRepoId(), job.getAttempts(), delay.toSeconds(), e.getMessage());
+        finish(job, new Update()
+                .set("state", DetectionJobState.PENDING)
+                .set("nextAttemptAt", LocalDateTime.now().plus(delay))
+                .set("lastError", e.getMessage()));
+        retriedCounter.increment();
+    }
+
+    // Hands a claimed job back untouched, e.g. when the worker pool refused it
+    private void release(DetectionJob job) {
+        finish(job, new Update()
+                .set("state", DetectionJobState.PENDING)
+                .set("nextAttemptAt", LocalDateTime.now())
+                .inc("attempts", -1));
+    }
+
+    /**
+     * Moves the job to a final state, unless it was queued again while it ran; then it goes back
+     * to PENDING with fresh attempts. Returns true only if the final state was written.
+     */
+    private boolean finishOrRerun(DetectionJob job, Update finalUpdate) {
+        if (finish(job, Criteria.where("rerun").ne(true), finalUpdate, false)) {
+            return true;
+        }
+        Update rerun = new Update()
+                .set("state", DetectionJobState.PENDING)
+                .set("attempts", 0)
+                .set("nextAttemptAt", LocalDateTime.now())
+                .set("lastError", null)
+                .set("rerun", false);
+        if (finish(job, Criteria.where("rerun").is(true), rerun, false)) {
+            LOGGER.info("Repo {} was queued again during detection, running it once more", job.getRepoId());
+        } else {
+            LOGGER.warn("Lost the lease on detection job {} for repo {}", job.getId(), job.getRepoId());
+        }
+        return false;
+    }
+
+    private boolean finish(DetectionJob job, Update update) {
+        return finish(job, null, update, true);
+    }
+
+    // Only the current lease holder may move the job on; returns false if the lease was lost
+    private boolean finish(DetectionJob job, Criteria condition, Update update, boolean warnIfLost) {
+        Query query = new Query(Criteria.where("_id").is(job.getId())
+                .and("leaseOwner").is(nodeId)
+                .and("state").is(DetectionJobState.RUNNING));
+        if (condition != null) {
+            query.addCriteria(condition);
+        }
+        update.set("leaseOwner", null)
+                .set("leaseExpiresAt", null)
+                .set("updatedAt", LocalDateTime.now());
+        boolean updated = mongoTemplate.updateFirst(query, update, DetectionJob.class).getModifiedCount() > 0;
+        if (!updated && warnIfLost) {
+            LOGGER.warn("Lost the lease on detection job {} for repo {}", job.getId(), job.getRepoId());
+        }
+        return updated;
+    }
+
+    private Duration backoff(int attempts) {
+        long seconds = Math.min(maxBackoffSeconds, backoffSeconds << Math.min(attempts - 1, 20));
+        // Spread retries a little so repos that failed together do not retry together
+        long jitter = ThreadLocalRandom.current().nextLong(seconds / 5 + 1);
+        return Duration.ofSeconds(seconds + jitter);
+    }
+
+    private LocalDateTime leaseDeadline() {
+        return LocalDateTime.now().plusSeconds(leaseSeconds);
+    }
+}
@@ -1,6 +1,8 @@
 package com.quashbugs.magnus.service;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.quashbugs.magnus.adapter.VcsAdapter;
@@ -8,19 +10,25 @@ import com.quashbugs.magnus.controller.SSEController;
 import com.quashbugs.magnus.dto.*;
 import com.quashbugs.magnus.model.*;
 import com.quashbugs.magnus.repository.*;
+import jakarta.annotation.PostConstruct;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.http.*;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
@@ -28,6 +36,7 @@ import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Service
@@ -45,12 +54,6 @@ public class GithubService implements VcsAdapter {
     @Value("${spring.github.app.installation.url}")
     private String githubInstallationUrl;
 
-    @Value("${spring.github.app.id}")
-    private String githubAppId;
-
-    @Value("${spring.github.app.private.key}")
-    private String privateKeyPEM;
-
     @Value("${spring.github.webhook.secret}")
     private String webhookSecret;
 
@@ -66,6 +69,12 @@ public class GithubService implements VcsAdapter {
     @Value("${spring.pr.callback.url}")
     private String prCallbackUrl;
 
+    @Value("${spring.github.file.discovery:tree}")
+    private String fileDiscoveryMode;
+
+    private static final String VCS_PROVIDER = "github";
+    // GitHub lists at most this many commits in a push payload
+    private static final int MAX_PUSH_COMMITS = 2048;
     private static final String GITHUB_API_BASE_URL = "https://api.github.com";
 
     private final JwtService jwtService;
@@ -73,13 +82,19 @@ public class GithubService implements VcsAdapter {
     private final MemberRepository memberRepository;
     private final RepoRepository repoRepository;
     private final ObjectMapper objectMapper;
-    private final ExecutorService executorService;
+    private final AsyncTaskExecutor fetchExecutor;
     private final MobileDetectorService mobileDetectorService;
     private final UserRepository userRepository;
     private final PullRequestRepository pullRequestRepository;
     private final ConfigurationRepository configurationRepository;
     private final SSEController sseController;
     private final DataEncryptionService dataEncryptionService;
+    private final RestTemplate restTemplate;
+    private final GithubTokenManager tokenManager;
+    private final RepoStateRepository repoStateRepository;
+    private final RepoSyncRepository repoSyncRepository;
+    private final DetectionJobQueue detectionJobQueue;
+    private final RepoFileIndexService repoFileIndexService;
     private static final Logger LOGGER = LoggerFactory.getLogger(GithubService.class);
 
     @Autowired
@@ -93,7 +108,14 @@ public class GithubService implements VcsAdapter {
                          PullRequestRepository pullRequestRepository,
                          ConfigurationRepository configurationRepository,
                          SSEController sseController,
-                         DataEncryptionService dataEncryptionService) {
+                         DataEncryptionService dataEncryptionService,
+                         RestTemplate restTemplate,
+                         GithubTokenManager tokenManager,
+                         RepoStateRepository repoStateRepository,
+                         RepoSyncRepository repoSyncRepository,
+                         DetectionJobQueue detectionJobQueue,
+                         RepoFileIndexService repoFileIndexService,
+                         @Qualifier("githubFetchExecutor") AsyncTaskExecutor fetchExecutor) {
         this.jwtService = jwtService;
         this.organisationRepository = organisationRepository;
         this.memberRepository = memberRepository;
@@ -104,7 +126,13 @@ public class GithubService implements VcsAdapter {
         this.configurationRepository = configurationRepository;
         this.sseController = sseController;
         this.dataEncryptionService = dataEncryptionService;
-        this.executorService = Executors.newFixedThreadPool(10);
+        this.restTemplate = restTemplate;
+        this.tokenManager = tokenManager;
+        this.repoStateRepository = repoStateRepository;
+        this.repoSyncRepository = repoSyncRepository;
+        this.detectionJobQueue = detectionJobQueue;
+        this.repoFileIndexService = repoFileIndexService;
+        this.fetchExecutor = fetchExecutor;
         this.mobileDetectorService = mobileDetectorService;
     }
 
@@ -145,7 +173,7 @@ public class GithubService implements VcsAdapter {
 
     private Map<String, Object> fetchBasicUserInfo(HttpEntity<?> entity) {
         try {
-            ResponseEntity<Map<String, Object>> response = new RestTemplate().exchange(
+            ResponseEntity<Map<String, Object>> response = restTemplate.exchange(
                     "https://api.github.com/user",
                     HttpMethod.GET,
                     entity,
@@ -166,7 +194,7 @@ public class GithubService implements VcsAdapter {
 
     private String fetchPrimaryEmail(HttpEntity<?> entity) {
         try {
-            ResponseEntity<List<Map<String, Object>>> response = new RestTemplate().exchange(
+            ResponseEntity<List<Map<String, Object>>> response = restTemplate.exchange(
                     "https://api.github.com/user/emails",
                     HttpMethod.GET,
                     entity,
@@ -279,7 +307,7 @@ public class GithubService implements VcsAdapter {
         headers.set("Authorization", "Bearer " + accessToken);
         HttpEntity<String> entity = new HttpEntity<>(headers);
 
-        ResponseEntity<String> response = new RestTemplate().exchange(
+        ResponseEntity<String> response = restTemplate.exchange(
                 "https://api.github.com/user/orgs",
                 HttpMethod.GET,
                 entity,
@@ -359,62 +387,37 @@ public class GithubService implements VcsAdapter {
     }
 
     public Organisation getInstallationAccessToken(User user, String installationId) throws Exception {
-        JwtResponseDTO jwtResponse = jwtService.generateJwt(githubAppId, privateKeyPEM);
+        JwtResponseDTO jwtResponse = jwtService.generateGithubAppJwt();
         String jwt = jwtResponse.getToken();
 
         Map<String, Object> orgData = getInstallationOrganization(installationId, jwt);
         String orgName = (String) orgData.get("login");
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.setBearerAuth(jwt);
-        headers.setAccept(List.of(MediaType.parseMediaType("application/vnd.github.v3+json")));
-
-        HttpEntity<String> entity = new HttpEntity<>(headers);
+        GithubTokenManager.InstallationToken accessToken = tokenManager.issueToken(installationId);
 
-        try {
-            ResponseEntity<Map> response = new RestTemplate().exchange(
-                    "https://api.github.com/app/installations/" + installationId + "/access_tokens",
-                    HttpMethod.POST,
-                    entity,
-                    Map.class
-            );
+        GithubOrganisation org = (GithubOrganisation) organisationRepository.findByNameAndVcsProvider(orgName, "github")
+                .orElseGet(() -> {
+                    return GithubOrganisation.builder()
+                            .name(orgName)
+                            .type(OrganisationType.WORK)
+                            .vcsProvider("github")
+                            .createdAt(LocalDateTime.now())
+                            .build();
+                });
 
-            if (response.getBody() != null && response.getBody().containsKey("token")) {
-                String token = (String) response.getBody().get("token");
-
-                String expiresAtStr = (String) response.getBody().get("expires_at");
-                DateTimeFormatter formatter = DateTimeFormatter.ISO_DATE_TIME;
-                LocalDateTime githubAccessTokenExpiry = LocalDateTime.parse(expiresAtStr, formatter);
-
-                GithubOrganisation org = (GithubOrganisation) organisationRepository.findByNameAndVcsProvider(orgName, "github")
-                        .orElseGet(() -> {
-                            return GithubOrganisation.builder()
-                                    .name(orgName)
-                                    .type(OrganisationType.WORK)
-                                    .vcsProvider("github")
-                                    .createdAt(LocalDateTime.now())
-                                    .build();
-                        });
-
-                if (org.getOwner() == null) {
-                    org.setOwner(user);
-                }
+        if (org.getOwner() == null) {
+            org.setOwner(user);
+        }
 
-                org.setGithubInstallationId(installationId);
-                org.setGithubInstallationToken(jwt);
-                org.setGithubAccessToken(token);
-                org.setGithubInstallationTokenExpiry(jwtResponse.getExpiry());
-                org.setGithubAccessTokenExpiry(githubAccessTokenExpiry);
+        org.setGithubInstallationId(installationId);
+        org.setGithubInstallationToken(jwt);
+        org.setGithubAccessToken(accessToken.value());
+        org.setGithubInstallationTokenExpiry(jwtResponse.getExpiry());
+        org.setGithubAccessTokenExpiry(accessToken.expiresAtUtc());
 
-                organisationRepository.save(org);
+        organisationRepository.save(org);
 
-                return org;
-            } else {
-                throw new RuntimeException("Unexpected response from GitHub API");
-            }
-        } catch (HttpClientErrorException e) {
-            throw new RuntimeException("Error calling GitHub API: " + e.getMessage(), e);
-        }
+        return org;
     }
 
     private Map<String, Object> getInstallationOrganization(String installationId, String token) throws Exception {
@@ -426,7 +429,7 @@ public class GithubService implements VcsAdapter {
 
         HttpEntity<String> entity = new HttpEntity<>(headers);
 
-        ResponseEntity<Map> response = new RestTemplate().exchange(url, HttpMethod.GET, entity, Map.class);
+        ResponseEntity<Map> response = restTemplate.exchange(url, HttpMethod.GET, entity, Map.class);
         Map<String, Object> installation = response.getBody();
 
         if (installation != null && installation.containsKey("account")) {
@@ -442,46 +445,42 @@ public class GithubService implements VcsAdapter {
                 .orElseThrow(() -> new RuntimeException("Organisation not found"));
 
         String accessToken = getValidAccessToken(org);
-        List<Map<String, Object>> repoData = fetchReposFromGithub(accessToken);
 
         List<Repo> repositories = new ArrayList<>();
         Set<String> currentRepoNames = new HashSet<>();
+        int[] counts = new int[2];
 
-        for (Map<String, Object> repo : repoData) {
-            String repoName = (String) repo.get("name");
-            currentRepoNames.add(repoName);
-
-            Repo repository = repoRepository.findByNameAndOrganisation(repoName, org)
-                    .orElse(Repo.builder().build());
-
-            if (repository.getState() != RepoState.COMPATIBLE &&
-                    repository.getState() != RepoState.INCOMPATIBLE) {
-
+        // Each page is stored and queued for detection before the next one is requested
+        forEachRepoPage(accessToken, repoData -> {
+            List<Repo> incoming = new ArrayList<>();
+            for (Map<String, Object> repo : repoData) {
+                Repo repository = Repo.builder().build();
                 updateRepoBasicInfo(repository, repo, org);
-                repository.setState(RepoState.FETCHING);
-                Repo savedRepo = repoRepository.save(repository);
-                repositories.add(savedRepo);
+                incoming.add(repository);
+                currentRepoNames.add(repository.getName());
+            }
 
-                CompletableFuture.runAsync(() -> {
-                    try {
-                        processRepo(savedRepo, accessToken);
-                    } catch (Exception e) {
-                        LOGGER.error("Error processing repo: {}", repoName, e);
-                        updateRepoState(savedRepo, RepoState.ERROR);
-                    }
-                }, executorService);
-            } else {
-                updateRepoBasicInfo(repository, repo, org);
-                repositories.add(repoRepository.save(repository));
+            RepoSyncRepository.UpsertResult upserted = repoSyncRepository.upsertAll(org, incoming);
+            counts[0] += upserted.inserted();
+            counts[1] += upserted.updated();
+            repositories.addAll(upserted.repos());
+
+            for (Repo savedRepo : upserted.repos()) {
+                if (savedRepo.getState() != RepoState.COMPATIBLE &&
+                        savedRepo.getState() != RepoState.INCOMPATIBLE) {
+                    detectionJobQueue.enqueue(VCS_PROVIDER, savedRepo.getId(), null);
+                }
             }
-        }
+        });
 
         if (!user.isOnboarded()) {
             user.setOnboarded(true);
             userRepository.save(user);
         }
 
-        removeStaleRepos(org, currentRepoNames);
+        long removed = repoSyncRepository.removeAllExcept(org, currentRepoNames);
+        LOGGER.info("Synced repositories of organisation {}: {} inserted, {} updated, {} removed",
+                org.getName(), counts[0], counts[1], removed);
         return repositories;
     }
 
@@ -494,52 +493,52 @@ public class GithubService implements VcsAdapter {
         return fetchBranches(organisation.getName(), repo.getName());
     }
 
-    private void processRepo(Repo repo, String accessToken) {
-        try {
-            if (repo.getState() == RepoState.COMPATIBLE ||
-                    repo.getState() == RepoState.INCOMPATIBLE) {
-                return;
-            }
-
-            updateRepoState(repo, RepoState.ANALYZING);
-
-            List<RepoFile> files = getAllRepositoryFiles(
-                    repo.getOrganisation().getName(),
-                    repo.getName(),
-                    accessToken
-            );
-
-            MobileProjectInfoDTO mobileInfo = mobileDetectorService.analyzeMobileProject(files);
-
-            repo.setMobile(mobileInfo.isMobile());
-            repo.setPlatform(mobileInfo.getPlatform());
-
-            RepoState newState = mobileInfo.isMobile() ? RepoState.COMPATIBLE : RepoState.INCOMPATIBLE;
-            updateRepoState(repo, newState);
-
-        } catch (Exception e) {
-            LOGGER.error("Error processing repo: {}", repo.getName(), e);
-            updateRepoState(repo, RepoState.ERROR);
-        }
+    @PostConstruct
+    public void registerDetectionHandler() {
+        detectionJobQueue.register(VCS_PROVIDER, this::detectRepo);
     }
 
-    private void updateRepoState(Repo repository, RepoState state) {
-        repository.setState(state);
-        repoRepository.save(repository);
+    private void detectRepo(DetectionJob job) throws Exception {
+        Repo repo = repoRepository.findById(job.getRepoId()).orElse(null);
+        if (repo == null) {
+            LOGGER.info("Skipping detection of repo {}, it no longer exists", job.getRepoId());
+            return;
+        }
+        processRepo(repo, getValidAccessToken((GithubOrganisation) repo.getOrganisation()));
     }
 
+    // Failures are left to the detection queue, which retries and marks the repo ERROR on the last attempt
+    private void processRepo(Repo repo, String accessToken) throws Exception {
+        if (repo.getState() == RepoState.COMPATIBLE ||
+                repo.getState() == RepoState.INCOMPATIBLE) {
+            return;
+        }
 
-    private void removeStaleRepos(GithubOrganisation org, Set<String> currentRepoNames) {
-        List<Repo> existingRepos = repoRepository.findAllByOrganisation(org)
-                .orElse(Collections.emptyList());
-
-        for (Repo existingRepo : existingRepos) {
-            if (!currentRepoNames.contains(existingRepo.getName())) {
-                repoRepository.delete(existingRepo);
+        if (!repoStateRepository.transitionState(repo.getId(), repo.getState(), RepoState.ANALYZING)) {
+            LOGGER.info("Skipping analysis of repo {}, its state changed concurrently", repo.getName());
+            return;
+        }
+        repo.setState(RepoState.ANALYZING);
+
+        MobileProjectInfoDTO mobileInfo = analyzeRepositoryFiles(repo, accessToken);
+
+        repo.setMobile(mobileInfo.isMobile());
+        repo.setPlatform(mobileInfo.getPlatform());
+        repo.setState(mobileInfo.isMobile() ? RepoState.COMPATIBLE : RepoState.INCOMPATIBLE);
+        if (!repoStateRepository.completeDetection(repo.getId(), mobileInfo.isMobile(), mobileInfo.getPlatform())) {
+            // The repo left ANALYZING while it was analysed; if it was put back in FETCHING, the
+            // running job is marked to run again so the repo does not stay there
+            Repo current = repoRepository.findById(repo.getId()).orElse(null);
+            if (current != null && current.getState() == RepoState.FETCHING) {
+                LOGGER.info("Repo {} was reset during analysis, queueing it again", repo.getName());
+                detectionJobQueue.enqueue(VCS_PROVIDER, repo.getId(), null);
+            } else {
+                LOGGER.info("Discarding analysis of repo {}, its state changed concurrently", repo.getName());
             }
         }
     }
 
+
     private void updateRepoBasicInfo(Repo repository, Map<String, Object> repoData, GithubOrganisation org) {
         repository.setName((String) repoData.get("name"));
         repository.setPrivate((Boolean) repoData.get("private"));
@@ -548,29 +547,55 @@ public class GithubService implements VcsAdapter {
         repository.setCreatedAt(LocalDateTime.parse((String) repoData.get("created_at"), DateTimeFormatter.ISO_DATE_TIME));
     }
 
-    private List<Map<String, Object>> fetchReposFromGithub(String accessToken) {
+    private void forEachRepoPage(String accessToken, Consumer<List<Map<String, Object>>> pageConsumer) {
         HttpHeaders headers = new HttpHeaders();
         headers.setBearerAuth(accessToken);
         headers.setAccept(List.of(MediaType.parseMediaType("application/vnd.github.v3+json")));
 
         HttpEntity<String> entity = new HttpEntity<>(headers);
+        String url = "https://api.github.com/installation/repositories?per_page=100";
 
-        ResponseEntity<Map<String, Object>> response = new RestTemplate().exchange(
-                "https://api.github.com/installation/repositories",
-                HttpMethod.GET,
-                entity,
-                new ParameterizedTypeReference<Map<String, Object>>() {
-                }
-        );
+        while (url != null) {
+            ResponseEntity<Map<String, Object>> response = restTemplate.exchange(
+                    URI.create(url),
+                    HttpMethod.GET,
+                    entity,
+                    new ParameterizedTypeReference<Map<String, Object>>() {
+                    }
+            );
 
-        Map<String, Object> body = response.getBody();
-        if (body != null && body.containsKey("repositories")) {
-            return (List<Map<String, Object>>) body.get("repositories");
-        } else {
-            throw new RuntimeException("Unexpected response structure from GitHub API");
+            Map<String, Object> body = response.getBody();
+            if (body == null || !body.containsKey("repositories")) {
+                throw new RuntimeException("Unexpected response structure from GitHub API");
+            }
+            pageConsumer.accept((List<Map<String, Object>>) body.get("repositories"));
+            url = nextPageUrl(response.getHeaders());
         }
     }
 
+    // Picks the rel="next" target out of a header like: <https://...&page=2>; rel="next", <https://...&page=5>; rel="last"
+    static String nextPageUrl(HttpHeaders headers) {
+        String link = headers.getFirst(HttpHeaders.LINK);
+        if (link == null) {
+            return null;
+        }
+        for (String part : link.split(",")) {
+            String[] segments = part.split(";");
+            if (segments.length < 2) {
+                continue;
+            }
+            for (int i = 1; i < segments.length; i++) {
+                if (segments[i].trim().equals("rel=\"next\"")) {
+                    String target = segments[0].trim();
+                    return target.startsWith("<") && target.endsWith(">")
+                            ? target.substring(1, target.length() - 1)
+                            : target;
+                }
+            }
+        }
+        return null;
+    }
+
 //    private void processRepoAsync(Repo repository, String accessToken) {
 //        try {
 //            updateAndNotify(repository, RepoState.FETCHING);
@@ -618,7 +643,7 @@ public class GithubService implements VcsAdapter {
         HttpEntity<String> entity = new HttpEntity<>(headers);
 
         String url = String.format("https://api.github.com/repos/%s/%s", orgName, repoName);
-        ResponseEntity<Map<String, Object>> response = new RestTemplate().exchange(
+        ResponseEntity<Map<String, Object>> response = restTemplate.exchange(
                 url,
                 HttpMethod.GET,
                 entity,
@@ -648,7 +673,7 @@ public class GithubService implements VcsAdapter {
 
         String url = String.format("https://api.github.com/repos/%s/%s/branches", orgName, repoName);
 
-        ResponseEntity<List<Map<String, Object>>> response = new RestTemplate().exchange(
+        ResponseEntity<List<Map<String, Object>>> response = restTemplate.exchange(
                 url,
                 HttpMethod.GET,
                 entity,
@@ -675,7 +700,7 @@ public class GithubService implements VcsAdapter {
 //        HttpEntity<String> entity = new HttpEntity<>(headers);
 //
 //        String url = String.format("https://api.github.com/repos/%s/%s/languages", orgName, repoName);
-//        ResponseEntity<Map<String, Long>> response = new RestTemplate().exchange(
+//        ResponseEntity<Map<String, Long>> response = restTemplate.exchange(
 //                url,
 //                HttpMethod.GET,
 //                entity,
@@ -698,7 +723,7 @@ public class GithubService implements VcsAdapter {
 //
 //        HttpEntity<String> entity = new HttpEntity<>(headers);
 //
-//        ResponseEntity<List<Map<String, Object>>> response = new RestTemplate().exchange(
+//        ResponseEntity<List<Map<String, Object>>> response = restTemplate.exchange(
 //                "https://api.github.com/repos/" + fullRepoName + "/branches",
 //                HttpMethod.GET,
 //                entity,
@@ -711,7 +736,141 @@ public class GithubService implements VcsAdapter {
 //                .collect(Collectors.toList()) : Collections.emptyList();
 //    }
 
-    private List<RepoFile> getAllRepositoryFiles(String repoOwner, String repoName, String token) throws InterruptedException, ExecutionException {
+    // A complete tree listing also becomes the repo's file index, which later pushes are applied to.
+    // A tree that was indexed before is read back from the index instead of being listed again.
+    private MobileProjectInfoDTO analyzeRepositoryFiles(Repo repo, String token) throws InterruptedException, ExecutionException {
+        String repoOwner = repo.getOrganisation().getName();
+        String repoName = repo.getName();
+        if ("tree".equalsIgnoreCase(fileDiscoveryMode)) {
+            String defaultBranch = fetchDefaultBranch(token, repoOwner, repoName);
+            String indexedCommit = repoFileIndexService.indexedCommit(repo.getId());
+            BranchHead head = fetchBranchHead(token, repoOwner, repoName, defaultBranch);
+            Optional<List<String>> paths = repoFileIndexService.loadTree(repo.getId(), head.treeSha());
+            if (paths.isEmpty()) {
+                GitTreeListing listing = fetchRecursiveTree(repoOwner, repoName, token, head.treeSha());
+                if (!listing.truncated()) {
+                    paths = Optional.of(paths(listing.files()));
+                }
+            }
+            if (paths.isPresent()) {
+                List<String> headPaths = paths.get();
+                // If a push moved the index on meanwhile, this result still describes the head that was read
+                return repoFileIndexService.rebuild(repo.getId(), defaultBranch, indexedCommit, head.commitSha(),
+                                head.treeSha(), headPaths)
+                        .orElseGet(() -> mobileDetectorService.analyzeClauseCounts(
+                                mobileDetectorService.countClauses(headPaths)));
+            }
+            LOGGER.warn("Git tree for {}/{} is truncated, falling back to the contents crawl", repoOwner, repoName);
+        }
+        return mobileDetectorService.analyzeMobileProject(crawlRepositoryContents(repoOwner, repoName, token));
+    }
+
+    private static List<String> paths(List<RepoFile> files) {
+        return files.stream().map(RepoFile::getPath).collect(Collectors.toList());
+    }
+
+    // Variables are encoded strictly, so a branch name with '/', '#' or '%' stays one path segment
+    static URI githubRepoUri(String pathTemplate, String owner, String repo, String... variables) {
+        Object[] values = new Object[variables.length + 2];
+        values[0] = owner;
+        values[1] = repo;
+        System.arraycopy(variables, 0, values, 2, variables.length);
+        return UriComponentsBuilder.fromUriString("https://api.github.com/repos/{owner}/{repo}" + pathTemplate)
+                .encode()
+                .buildAndExpand(values)
+                .toUri();
+    }
+
+    private record BranchHead(String commitSha, String treeSha) {
+    }
+
+    private BranchHead fetchBranchHead(String accessToken, String orgName, String repoName, String branch) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setBearerAuth(accessToken);
+        headers.setAccept(List.of(MediaType.parseMediaType("application/vnd.github.v3+json")));
+        HttpEntity<String> entity = new HttpEntity<>(headers);
+
+        URI url = githubRepoUri("/branches/{branch}", orgName, repoName, branch);
+        String response = restTemplate.exchange(url, HttpMethod.GET, entity, String.class).getBody();
+        try {
+            JsonNode commitNode = objectMapper.readTree(response).path("commit");
+            String commitSha = commitNode.path("sha").asText(null);
+            String treeSha = commitNode.path("commit").path("tree").path("sha").asText(null);
+            if (commitSha == null || treeSha == null) {
+                throw new RuntimeException("Unable to fetch head of " + branch + " for repository: " + repoName);
+            }
+            return new BranchHead(commitSha, treeSha);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Unexpected branch response for repository: " + repoName, e);
+        }
+    }
+
+    private record GitTreeListing(String sha, List<RepoFile> files, boolean truncated) {
+    }
+
+    // Lists a fixed tree (or commit) rather than the branch, so the index is pinned to a known tree
+    private GitTreeListing fetchRecursiveTree(String repoOwner, String repoName, String token, String treeish) {
+        URI url = githubRepoUri("/git/trees/{treeish}?recursive=1", repoOwner, repoName, treeish);
+
+        GitTreeListing listing = restTemplate.execute(url, HttpMethod.GET,
+                request -> {
+                    request.getHeaders().setBearerAuth(token);
+                    request.getHeaders().setAccept(List.of(MediaType.parseMediaType("application/vnd.github.v3+json")));
+                },
+                response -> readTreeListing(response.getBody()));
+
+        if (listing == null) {
+            throw new RuntimeException("Unable to fetch git tree for repository: " + repoName);
+        }
+        return listing;
+    }
+
+    private GitTreeListing readTreeListing(InputStream body) throws IOException {
+        String sha = null;
+        boolean truncated = false;
+        List<RepoFile> files = new ArrayList<>();
+
+        try (JsonParser parser = objectMapper.getFactory().createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected git tree response format");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                switch (field) {
+                    case "sha" -> sha = parser.getValueAsString();
+                    case "truncated" -> truncated = parser.getValueAsBoolean();
+                    case "tree" -> readTreeEntries(parser, files);
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+        return new GitTreeListing(sha, files, truncated);
+    }
+
+    private void readTreeEntries(JsonParser parser, List<RepoFile> files) throws IOException {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String path = null;
+            String type = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if ("path".equals(field)) {
+                    path = parser.getValueAsString();
+                } else if ("type".equals(field)) {
+                    type = parser.getValueAsString();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            // Only blobs are files; "tree" entries are directories and "commit" entries are submodules
+            if ("blob".equals(type) && path != null) {
+                files.add(new RepoFile(path.substring(path.lastIndexOf('/') + 1), path, "file"));
+            }
+        }
+    }
+
+    private List<RepoFile> crawlRepositoryContents(String repoOwner, String repoName, String token) throws InterruptedException, ExecutionException {
         List<RepoFile> allFiles = new CopyOnWriteArrayList<>();
         Queue<String> directories = new ConcurrentLinkedQueue<>();
         directories.add(""); // Start with root directory
@@ -720,7 +879,7 @@ public class GithubService implements VcsAdapter {
             List<Future<?>> futures = new ArrayList<>();
             for (int i = 0; i < Math.min(directories.size(), 10); i++) { // Process up to 10 directories concurrently
                 String dir = directories.poll();
-                futures.add(executorService.submit(() -> {
+                futures.add(fetchExecutor.submit(() -> {
                     try {
                         List<RepoFile> files = getRepositoryContents(repoOwner, repoName, dir, token);
                         for (RepoFile file : files) {
@@ -752,7 +911,7 @@ public class GithubService implements VcsAdapter {
 
         HttpEntity<String> entity = new HttpEntity<>(headers);
 
-        String response = new RestTemplate().exchange(url, HttpMethod.GET, entity, String.class).getBody();
+        String response = restTemplate.exchange(url, HttpMethod.GET, entity, String.class).getBody();
 
         List<RepoFile> files = new ArrayList<>();
         JsonNode root = objectMapper.readTree(response);
@@ -819,60 +978,7 @@ public class GithubService implements VcsAdapter {
 
 
     public String getValidAccessToken(GithubOrganisation org) {
-        LocalDateTime tokenExpiry = org.getGithubAccessTokenExpiry();
-        if (tokenExpiry == null || tokenExpiry.isBefore(LocalDateTime.now().plusMinutes(5))) {
-            return refreshAccessToken(org);
-        }
-        return org.getGithubAccessToken();
-    }
-
-    private String refreshAccessToken(GithubOrganisation org) {
-        HttpHeaders headers = new HttpHeaders();
-        refreshInstallationTokenIfNeeded(org);
-        headers.setBearerAuth(org.getGithubInstallationToken());
-        headers.setAccept(List.of(MediaType.parseMediaType("application/vnd.github.v3+json")));
-        HttpEntity<String> entity = new HttpEntity<>(headers);
-
-        try {
-            ResponseEntity<Map> response = new RestTemplate().exchange(
-                    "https://api.github.com/app/installations/" + org.getGithubInstallationId() + "/access_tokens",
-                    HttpMethod.POST,
-                    entity,
-                    Map.class
-            );
-
-            if (response.getBody() != null && response.getBody().containsKey("token")) {
-                String newAccessToken = (String) response.getBody().get("token");
-                String expiresAtStr = (String) response.getBody().get("expires_at");
-
-                DateTimeFormatter formatter = DateTimeFormatter.ISO_DATE_TIME;
-                LocalDateTime githubAccessTokenExpiry = LocalDateTime.parse(expiresAtStr, formatter);
-
-                org.setGithubAccessToken(newAccessToken);
-                org.setGithubAccessTokenExpiry(githubAccessTokenExpiry);
-                organisationRepository.save(org);
-
-                return newAccessToken;
-            } else {
-                throw new RuntimeException("Failed to obtain GitHub access token");
-            }
-        } catch (Exception e) {
-            throw new RuntimeException("Error refreshing GitHub access token", e);
-        }
-    }
-
-    private void refreshInstallationTokenIfNeeded(GithubOrganisation org) {
-        LocalDateTime installationTokenExpiry = org.getGithubInstallationTokenExpiry();
-        if (installationTokenExpiry == null || installationTokenExpiry.isBefore(LocalDateTime.now().plusMinutes(5))) {
-            try {
-                JwtResponseDTO jwtResponse = jwtService.generateJwt(githubAppId, privateKeyPEM);
-                org.setGithubInstallationToken(jwtResponse.getToken());
-                org.setGithubInstallationTokenExpiry(jwtResponse.getExpiry());
-                organisationRepository.save(org);
-            } catch (Exception e) {
-                throw new RuntimeException("Error refreshing GitHub installation token", e);
-            }
-        }
+        return tokenManager.getAccessToken(org);
     }
 
     // WEBHOOK PART
@@ -910,7 +1016,7 @@ public class GithubService implements VcsAdapter {
     private BranchScanningResponseDTO scanBranch(Repo repo, User user, String accessToken, String branch) {
         try {
             HttpEntity<Map<String, Object>> request = createScanningRequest(repo, user, accessToken, branch);
-            ResponseEntity<String> response = new RestTemplate().postForEntity(scanningAnalysisUrl, request, String.class);
+            ResponseEntity<String> response = restTemplate.postForEntity(scanningAnalysisUrl, request, String.class);
 
             JsonNode responseBody = new ObjectMapper().readTree(response.getBody());
             return BranchScanningResponseDTO.builder()
@@ -1054,7 +1160,7 @@ public class GithubService implements VcsAdapter {
             eventData.put("timestamp", LocalDateTime.now().toString());
 
             String eventDataJson = new ObjectMapper().writeValueAsString(eventData);
-            sseController.sendEvent("repo_update", eventDataJson);
+            sseController.sendEvent("repo_update", eventDataJson, repo);
 
             LOGGER.debug("Sent scan start event for repo {}", repo.getName());
         } catch (JsonProcessingException e) {
@@ -1127,6 +1233,105 @@ public class GithubService implements VcsAdapter {
         }
     }
 
+    /**
+     * Re-detects a classified repo when its default branch is pushed to. The pushed commits'
+     * added and removed paths are applied to the repo's file index; their modified paths are
+     * ignored, since editing a file never changes which paths exist and detection only looks at
+     * paths. If that is not possible (no index yet, a missed push, a force push) the pushed tree is
+     * read from the stored listings, or listed if it was never seen before, provided the push is
+     * still the head of the branch. A tree too large to list is left to a full detection job.
+     */
+    public void processPushEvent(String payload) {
+        try {
+            JsonNode rootNode = objectMapper.readTree(payload);
+            JsonNode repoNode = rootNode.path("repository");
+            String defaultBranch = repoNode.path("default_branch").asText();
+            if (!("refs/heads/" + defaultBranch).equals(rootNode.path("ref").asText())
+                    || rootNode.path("deleted").asBoolean()) {
+                return;
+            }
+            String orgName = repoNode.path("owner").path("login").asText();
+            String repoName = repoNode.path("name").asText();
+
+            Optional<Repo> optionalRepo = organisationRepository
+                    .findGithubOrganisationByNameAndVcsProvider(orgName, VCS_PROVIDER)
+                    .flatMap(org -> repoRepository.findByNameAndOrganisation(repoName, org));
+            if (optionalRepo.isEmpty()) {
+                LOGGER.info("Ignoring push to unknown repository {}/{}", orgName, repoName);
+                return;
+            }
+            Repo repo = optionalRepo.get();
+            // Repos that were never classified are still waiting for (or failed) full detection
+            if (!EnumSet.of(RepoState.COMPATIBLE, RepoState.INCOMPATIBLE, RepoState.SCANNING, RepoState.SCANNED)
+                    .contains(repo.getState())) {
+                return;
+            }
+
+            String before = rootNode.path("before").asText();
+            String after = rootNode.path("after").asText();
+            String treeSha = rootNode.path("head_commit").path("tree_id").asText(null);
+            JsonNode commitsNode = rootNode.path("commits");
+            // The commit list is capped, and after a force push or branch creation it does not describe the change from "before"
+            boolean replayable = !rootNode.path("forced").asBoolean()
+                    && !rootNode.path("created").asBoolean()
+                    && commitsNode.size() < MAX_PUSH_COMMITS;
+
+            Optional<MobileProjectInfoDTO> mobileInfo = Optional.empty();
+            if (replayable) {
+                List<RepoFileIndexService.CommitChanges> commits = new ArrayList<>();
+                for (JsonNode commitNode : commitsNode) {
+                    commits.add(new RepoFileIndexService.CommitChanges(
+                            textValues(commitNode.path("added")), textValues(commitNode.path("removed"))));
+                }
+                mobileInfo = repoFileIndexService.applyPush(repo.getId(), before, after, treeSha, commits);
+            }
+            if (mobileInfo.isEmpty()) {
+                // Deliveries can arrive out of order; only the push that is still the branch head is rebuilt
+                String indexedCommit = repoFileIndexService.indexedCommit(repo.getId());
+                String accessToken = getValidAccessToken((GithubOrganisation) repo.getOrganisation());
+                BranchHead head = fetchBranchHead(accessToken, orgName, repoName, defaultBranch);
+                if (!after.equals(head.commitSha())) {
+                    LOGGER.info("Push of {} to {}/{} is no longer the branch head, leaving it to the push of {}",
+                            after, orgName, repoName, head.commitSha());
+                    return;
+                }
+                Optional<List<String>> paths = repoFileIndexService.loadTree(repo.getId(), head.treeSha());
+                if (paths.isEmpty()) {
+                    GitTreeListing listing = fetchRecursiveTree(orgName, repoName, accessToken, head.treeSha());
+                    if (listing.truncated()) {
+                        LOGGER.info("Git tree for {}/{} is truncated, queueing full detection for the push",
+                                orgName, repoName);
+                        detectionJobQueue.enqueue(VCS_PROVIDER, repo.getId(), null);
+                        return;
+                    }
+                    paths = Optional.of(paths(listing.files()));
+                }
+                mobileInfo = repoFileIndexService.rebuild(repo.getId(), defaultBranch, indexedCommit, after,
+                        head.treeSha(), paths.get());
+                if (mobileInfo.isEmpty()) {
+                    // A later push or a detection run stored its own result meanwhile
+                    return;
+                }
+            }
+
+            MobileProjectInfoDTO result = mobileInfo.get();
+            if (result.isMobile() != repo.isMobile() || !Objects.equals(result.getPlatform(), repo.getPlatform())) {
+                LOGGER.info("Push to {}/{} changed its detection result to mobile={} platform={}",
+                        orgName, repoName, result.isMobile(), result.getPlatform());
+                repoStateRepository.updateClassification(repo.getId(), result.isMobile(), result.getPlatform());
+            }
+        } catch (Exception e) {
+            LOGGER.error("Error processing push webhook: {}", e.getMessage(), e);
+            throw new RuntimeException("Failed to process push webhook", e);
+        }
+    }
+
+    private static List<String> textValues(JsonNode arrayNode) {
+        List<String> values = new ArrayList<>(arrayNode.size());
+        arrayNode.forEach(node -> values.add(node.asText()));
+        return values;
+    }
+
     private boolean isTargetBranchValid(Repo repo, String targetBranch) {
         return targetBranch.equals(repo.getPrimaryBranchDetails().getName()) ||
                 targetBranch.equals(repo.getSecondaryBranchDetails().getName());
@@ -1144,7 +1349,7 @@ public class GithubService implements VcsAdapter {
             eventData.put("error", e.getMessage());
 
             String eventDataJson = objectMapper.writeValueAsString(eventData);
-            sseController.sendEvent("pr_update", eventDataJson);
+            sseController.sendEvent("pr_update", eventDataJson, pullRequest.getRepo());
         } catch (JsonProcessingException jsonException) {
             LOGGER.error("Error sending error event for PR {}: {}",
                     pullRequest.getPullRequestNumber(), jsonException.getMessage());
@@ -1161,7 +1366,7 @@ public class GithubService implements VcsAdapter {
             eventData.put("author", pullRequest.getAuthorName());
 
             String eventDataJson = objectMapper.writeValueAsString(eventData);
-            sseController.sendEvent("pr_update", eventDataJson);
+            sseController.sendEvent("pr_update", eventDataJson, pullRequest.getRepo());
         } catch (JsonProcessingException e) {
             LOGGER.error("Error creating SSE event data for new PR", e);
         }
@@ -1223,7 +1428,7 @@ public class GithubService implements VcsAdapter {
 
         HttpEntity<Map<String, Object>> request = new HttpEntity<>(requestBody, headers);
 
-        new RestTemplate().postForEntity(prAnalysisUrl, request, String.class);
+        restTemplate.postForEntity(prAnalysisUrl, request, String.class);
     }
 
     private GithubPrDTO getTokens(PullRequest pullRequest) {
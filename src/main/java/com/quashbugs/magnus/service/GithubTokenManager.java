@@ -0,0 +1,167 @@
+package com.quashbugs.magnus.service;
+
+import com.quashbugs.magnus.model.GithubOrganisation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.*;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+@Service
+public class GithubTokenManager {
+
+    // Tokens closer than this to expiry are never handed out; callers wait for a refresh
+    private static final Duration MIN_REMAINING_VALIDITY = Duration.ofMinutes(5);
+    // Tokens closer than this to expiry are still handed out, but a background refresh is started
+    private static final Duration REFRESH_AHEAD = Duration.ofMinutes(10);
+
+    private final JwtService jwtService;
+    private final MongoTemplate mongoTemplate;
+    private final RestTemplate restTemplate;
+    private final AsyncTaskExecutor asyncTaskExecutor;
+    private final Map<String, InstallationToken> tokens = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<InstallationToken>> refreshes = new ConcurrentHashMap<>();
+    private static final Logger LOGGER = LoggerFactory.getLogger(GithubTokenManager.class);
+
+    @Autowired
+    public GithubTokenManager(JwtService jwtService,
+                              MongoTemplate mongoTemplate,
+                              RestTemplate restTemplate,
+                              @Qualifier("asyncTaskExecutor") AsyncTaskExecutor asyncTaskExecutor) {
+        this.jwtService = jwtService;
+        this.mongoTemplate = mongoTemplate;
+        this.restTemplate = restTemplate;
+        this.asyncTaskExecutor = asyncTaskExecutor;
+    }
+
+    public record InstallationToken(String value, Instant expiresAt) {
+        public LocalDateTime expiresAtUtc() {
+            return LocalDateTime.ofInstant(expiresAt, ZoneOffset.UTC);
+        }
+    }
+
+    public String getAccessToken(GithubOrganisation org) {
+        String installationId = org.getGithubInstallationId();
+        if (installationId == null) {
+            throw new RuntimeException("GitHub App is not installed for organisation: " + org.getName());
+        }
+
+        InstallationToken token = tokens.computeIfAbsent(installationId, id -> fromOrganisation(org));
+        Instant now = Instant.now();
+
+        if (token != null && token.expiresAt().isAfter(now.plus(MIN_REMAINING_VALIDITY))) {
+            if (token.expiresAt().isBefore(now.plus(REFRESH_AHEAD))) {
+                refresh(installationId, org, asyncTaskExecutor);
+            }
+            return token.value();
+        }
+
+        try {
+            return refresh(installationId, org, Runnable::run).join().value();
+        } catch (CompletionException e) {
+            throw new RuntimeException("Error refreshing GitHub access token", e.getCause());
+        }
+    }
+
+    public InstallationToken issueToken(String installationId) {
+        try {
+            return refresh(installationId, null, Runnable::run).join();
+        } catch (CompletionException e) {
+            throw new RuntimeException("Error calling GitHub API: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private CompletableFuture<InstallationToken> refresh(String installationId, GithubOrganisation org, Executor runner) {
+        CompletableFuture<InstallationToken> created = new CompletableFuture<>();
+        CompletableFuture<InstallationToken> inFlight = refreshes.putIfAbsent(installationId, created);
+        if (inFlight != null) {
+            return inFlight;
+        }
+
+        Runnable task = () -> {
+            try {
+                InstallationToken token = requestInstallationToken(installationId);
+                tokens.put(installationId, token);
+                if (org != null) {
+                    persist(org, token);
+                }
+                refreshes.remove(installationId, created);
+                created.complete(token);
+            } catch (Exception e) {
+                LOGGER.error("Error refreshing access token for GitHub installation {}", installationId, e);
+                refreshes.remove(installationId, created);
+                created.completeExceptionally(e);
+            }
+        };
+
+        try {
+            runner.execute(task);
+        } catch (RuntimeException e) {
+            // Executor saturated: drop the background refresh, the next caller will retry it
+            LOGGER.warn("Could not schedule token refresh for GitHub installation {}", installationId, e);
+            refreshes.remove(installationId, created);
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
+
+    private InstallationToken requestInstallationToken(String installationId) throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setBearerAuth(jwtService.generateGithubAppJwt().getToken());
+        headers.setAccept(List.of(MediaType.parseMediaType("application/vnd.github.v3+json")));
+
+        ResponseEntity<Map<String, Object>> response = restTemplate.exchange(
+                "https://api.github.com/app/installations/" + installationId + "/access_tokens",
+                HttpMethod.POST,
+                new HttpEntity<>(headers),
+                new ParameterizedTypeReference<Map<String, Object>>() {
+                }
+        );
+
+        Map<String, Object> body = response.getBody();
+        if (body == null || !body.containsKey("token")) {
+            throw new RuntimeException("Failed to obtain GitHub access token");
+        }
+        Instant expiresAt = OffsetDateTime.parse((String) body.get("expires_at")).toInstant();
+        return new InstallationToken((String) body.get("token"), expiresAt);
+    }
+
+    // Only the token fields are written: org is the caller's snapshot, and saving it whole could
+    // undo changes made to the organisation since it was read
+    private void persist(GithubOrganisation org, InstallationToken token) {
+        org.setGithubAccessToken(token.value());
+        org.setGithubAccessTokenExpiry(token.expiresAtUtc());
+        Update update = new Update()
+                .set("githubAccessToken", token.value())
+                .set("githubAccessTokenExpiry", token.expiresAtUtc());
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(org.getId())), update, GithubOrganisation.class);
+    }
+
+    // GitHub reports expiry in UTC and it is stored without an offset
+    private InstallationToken fromOrganisation(GithubOrganisation org) {
+        if (org.getGithubAccessToken() == null || org.getGithubAccessTokenExpiry() == null) {
+            return null;
+        }
+        return new InstallationToken(org.getGithubAccessToken(), org.getGithubAccessTokenExpiry().toInstant(ZoneOffset.UTC));
+    }
+}
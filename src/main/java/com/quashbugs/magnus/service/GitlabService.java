@@ -11,10 +11,13 @@ import com.quashbugs.magnus.model.*;
 import com.quashbugs.magnus.repository.GitlabRepoRepository;
 import com.quashbugs.magnus.repository.MemberRepository;
 import com.quashbugs.magnus.repository.OrganisationRepository;
+import jakarta.annotation.PostConstruct;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.http.*;
 import org.springframework.stereotype.Service;
 import org.springframework.util.LinkedMultiValueMap;
@@ -42,26 +45,33 @@ public class GitlabService implements VcsAdapter {
 
     @Value("${spring.gitlab.redirect.uri}")
     private String redirect_uri;
-    private final ExecutorService executorService = Executors.newFixedThreadPool(10);
+    private static final String VCS_PROVIDER = "gitlab";
+    private final AsyncTaskExecutor fetchExecutor;
     private final ObjectMapper objectMapper = new ObjectMapper();
     private final MemberRepository memberRepository;
     private final OrganisationRepository organisationRepository;
     private final GitlabRepoRepository gitlabRepoRepository;
     private final MobileDetectorService mobileDetectorService;
+    private final RestTemplate restTemplate;
+    private final DetectionJobQueue detectionJobQueue;
     private static final Logger LOGGER = LoggerFactory.getLogger(GitlabService.class);
 
     @Autowired
     public GitlabService(MemberRepository memberRepository,
                          OrganisationRepository organisationRepository,
-                         GitlabRepoRepository gitlabRepoRepository, MobileDetectorService mobileDetectorService) {
+                         GitlabRepoRepository gitlabRepoRepository, MobileDetectorService mobileDetectorService,
+                         RestTemplate restTemplate,
+                         DetectionJobQueue detectionJobQueue,
+                         @Qualifier("gitlabFetchExecutor") AsyncTaskExecutor fetchExecutor) {
         this.memberRepository = memberRepository;
         this.organisationRepository = organisationRepository;
         this.gitlabRepoRepository = gitlabRepoRepository;
         this.mobileDetectorService = mobileDetectorService;
+        this.restTemplate = restTemplate;
+        this.detectionJobQueue = detectionJobQueue;
+        this.fetchExecutor = fetchExecutor;
     }
 
-    RestTemplate restTemplate = new RestTemplate();
-
     public HashMap getRefreshedToken(String refreshToken) {
         String url = "https://gitlab.com/oauth/token";
 
@@ -398,12 +408,6 @@ public class GitlabService implements VcsAdapter {
     public void saveProjects(User user, HashMap<String, Object> projectData) {
         try {
             Member member = memberRepository.findByUser(user).orElseThrow(() -> new RuntimeException("Member not found"));
-            String accessToken;
-            if (LocalDateTime.now().isAfter(member.getVcsTokenExpiry())) {
-                accessToken = newTokens(member);
-            } else {
-                accessToken = member.getVcsAccessToken();
-            }
 
             List<GitlabRepo> newGitlabRepos = new ArrayList<>();
 
@@ -428,14 +432,7 @@ public class GitlabService implements VcsAdapter {
                     GitlabRepo savedRepo = gitlabRepoRepository.save(repository);
                     newGitlabRepos.add(repository);
 
-                    CompletableFuture.runAsync(() -> {
-                        try {
-                            processRepo(savedRepo, accessToken);
-                        } catch (Exception e) {
-                            LOGGER.error("Error processing repo: {}", repository.getName(), e);
-                            updateRepoState(savedRepo, RepoState.ERROR);
-                        }
-                    }, executorService);
+                    detectionJobQueue.enqueue(VCS_PROVIDER, savedRepo.getId(), member.getId());
                 }
             }
         } catch (Exception e) {
@@ -452,29 +449,46 @@ public class GitlabService implements VcsAdapter {
         repository.setCreatedAt(LocalDateTime.now());
     }
 
-    private void processRepo(GitlabRepo repo, String accessToken) {
-        try {
-            if (repo.getState() == RepoState.COMPATIBLE ||
-                    repo.getState() == RepoState.INCOMPATIBLE) {
-                return;
-            }
+    @PostConstruct
+    public void registerDetectionHandler() {
+        detectionJobQueue.register(VCS_PROVIDER, this::detectRepo);
+    }
 
-            updateRepoState(repo, RepoState.ANALYZING);
+    private void detectRepo(DetectionJob job) throws Exception {
+        GitlabRepo repo = gitlabRepoRepository.findById(job.getRepoId()).orElse(null);
+        if (repo == null) {
+            LOGGER.info("Skipping detection of repo {}, it no longer exists", job.getRepoId());
+            return;
+        }
+        Member member = memberRepository.findById(job.getMemberId()).orElseThrow(() -> new RuntimeException("Member not found"));
+        processRepo(repo, accessToken(member));
+    }
 
-            List<RepoFile> files = getAllRepositoryFiles(repo.getProjectId(), accessToken);
+    private String accessToken(Member member) {
+        if (LocalDateTime.now().isAfter(member.getVcsTokenExpiry())) {
+            return newTokens(member);
+        }
+        return member.getVcsAccessToken();
+    }
 
-            MobileProjectInfoDTO mobileInfo = mobileDetectorService.analyzeMobileProject(files);
+    // Failures are left to the detection queue, which retries and marks the repo ERROR on the last attempt
+    private void processRepo(GitlabRepo repo, String accessToken) throws Exception {
+        if (repo.getState() == RepoState.COMPATIBLE ||
+                repo.getState() == RepoState.INCOMPATIBLE) {
+            return;
+        }
 
-            repo.setMobile(mobileInfo.isMobile());
-            repo.setPlatform(mobileInfo.getPlatform());
+        updateRepoState(repo, RepoState.ANALYZING);
 
-            RepoState newState = mobileInfo.isMobile() ? RepoState.COMPATIBLE : RepoState.INCOMPATIBLE;
-            updateRepoState(repo, newState);
+        List<RepoFile> files = getAllRepositoryFiles(repo.getProjectId(), accessToken);
 
-        } catch (Exception e) {
-            LOGGER.error("Error processing repo: {}", repo.getName(), e);
-            updateRepoState(repo, RepoState.ERROR);
-        }
+        MobileProjectInfoDTO mobileInfo = mobileDetectorService.analyzeMobileProject(files);
+
+        repo.setMobile(mobileInfo.isMobile());
+        repo.setPlatform(mobileInfo.getPlatform());
+
+        RepoState newState = mobileInfo.isMobile() ? RepoState.COMPATIBLE : RepoState.INCOMPATIBLE;
+        updateRepoState(repo, newState);
     }
 
     private void updateRepoState(GitlabRepo repository, RepoState state) {
@@ -497,7 +511,7 @@ public class GitlabService implements VcsAdapter {
             } catch (IOException e) {
                 throw new CompletionException(e);
             }
-        }, executorService);
+        }, fetchExecutor);
 
         future.get(); // Wait for all pages to be fetched
         System.out.println(allFiles.size());
@@ -542,10 +556,6 @@ public class GitlabService implements VcsAdapter {
         }
     }
 
-    public void shutdown() {
-        executorService.shutdown();
-    }
-
     private String getLanguage(String projectId, String accessToken) {
         String languageInfoUrl = "https://gitlab.com/api/v4/projects/" + projectId + "/languages";
         HttpHeaders headers = new HttpHeaders();
@@ -0,0 +1,76 @@
+package com.quashbugs.magnus.service;
+
+import com.quashbugs.magnus.model.ProcessedEvent;
+import com.quashbugs.magnus.repository.ProcessedEventRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers which webhook deliveries and callbacks have already been handled. Keys are kept in
+ * the processed_events collection (expired by a TTL index) with a bounded in-memory LRU in front,
+ * so repeats of recent events are rejected without a database round trip.
+ */
+@Service
+public class IdempotencyService {
+
+    private static final int RECENT_KEYS_CAPACITY = 50_000;
+
+    private final ProcessedEventRepository processedEventRepository;
+    private final Set<String> recentKeys = Collections.newSetFromMap(Collections.synchronizedMap(
+            new LinkedHashMap<>(1024, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > RECENT_KEYS_CAPACITY;
+                }
+            }));
+
+    @Autowired
+    public IdempotencyService(ProcessedEventRepository processedEventRepository) {
+        this.processedEventRepository = processedEventRepository;
+    }
+
+    public static String githubDeliveryKey(String deliveryId) {
+        return "github:" + deliveryId;
+    }
+
+    public static String scanningCallbackKey(String analysisId, String status) {
+        return "scan:" + analysisId + ":" + status;
+    }
+
+    public static String prCallbackKey(String analysisId, String prAnalysisId, String status) {
+        return "pr:" + analysisId + ":" + prAnalysisId + ":" + status;
+    }
+
+    /**
+     * Records the key and returns true if this is the first time it has been seen,
+     * false if it is a duplicate.
+     */
+    public boolean markFirstSeen(String key) {
+        if (recentKeys.contains(key)) {
+            return false;
+        }
+        try {
+            processedEventRepository.insert(new ProcessedEvent(key, Instant.now()));
+            recentKeys.add(key);
+            return true;
+        } catch (DuplicateKeyException e) {
+            recentKeys.add(key);
+            return false;
+        }
+    }
+
+    /**
+     * Forgets a key whose processing failed so that a retry of the same event is handled again.
+     */
+    public void release(String key) {
+        recentKeys.remove(key);
+        processedEventRepository.deleteById(key);
+    }
+}
@@ -5,6 +5,7 @@ import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.security.Keys;
+import jakarta.annotation.PostConstruct;
 import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
 import org.bouncycastle.openssl.PEMKeyPair;
 import org.bouncycastle.openssl.PEMParser;
@@ -37,8 +38,30 @@ public class JwtService {
     @Value("${jwt.refreshToken.expiration}")
     private long refreshTokenExpiration;
 
+    @Value("${spring.github.app.id}")
+    private String githubAppId;
+
+    @Value("${spring.github.app.private.key}")
+    private String githubAppPrivateKeyPath;
+
+    private static final long GITHUB_APP_JWT_TTL_SECONDS = 600;
+    private static final long GITHUB_APP_JWT_REUSE_MARGIN_SECONDS = 60;
+
+    private final Object githubAppJwtLock = new Object();
+    private volatile PrivateKey githubAppPrivateKey;
+    private volatile JwtResponseDTO cachedGithubAppJwt;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(JwtService.class);
 
+    @PostConstruct
+    public void loadGithubAppPrivateKey() {
+        try {
+            githubAppPrivateKey = readPrivateKey(githubAppPrivateKeyPath);
+        } catch (Exception e) {
+            LOGGER.error("Failed to load GitHub App private key from {}, retrying on first use", githubAppPrivateKeyPath, e);
+        }
+    }
+
     private Key getSigningKey() {
         byte[] keyBytes = secret.getBytes();
         return Keys.hmacShaKeyFor(keyBytes);
@@ -98,38 +121,66 @@ public class JwtService {
         return (extractedEmail.equals(email) && !isTokenExpired(token));
     }
 
-    public JwtResponseDTO generateJwt(String appId, String pemFilePath) throws Exception {
-        PrivateKey privateKey;
-
-        try (FileReader keyReader = new FileReader(pemFilePath);
-             PEMParser pemParser = new PEMParser(keyReader)) {
-
-            JcaPEMKeyConverter converter = new JcaPEMKeyConverter();
-            Object keyPair = pemParser.readObject();
-
-            if (keyPair instanceof PEMKeyPair) {
-                privateKey = converter.getPrivateKey(((PEMKeyPair) keyPair).getPrivateKeyInfo());
-            } else {
-                privateKey = converter.getPrivateKey((PrivateKeyInfo) keyPair);
+    public JwtResponseDTO generateGithubAppJwt() throws Exception {
+        JwtResponseDTO current = cachedGithubAppJwt;
+        if (isReusable(current)) {
+            return current;
+        }
+        synchronized (githubAppJwtLock) {
+            current = cachedGithubAppJwt;
+            if (!isReusable(current)) {
+                current = signGithubAppJwt();
+                cachedGithubAppJwt = current;
             }
+            return current;
         }
+    }
 
+    private boolean isReusable(JwtResponseDTO jwt) {
+        return jwt != null && jwt.getExpiry().isAfter(LocalDateTime.now().plusSeconds(GITHUB_APP_JWT_REUSE_MARGIN_SECONDS));
+    }
+
+    private JwtResponseDTO signGithubAppJwt() throws Exception {
         long now = Instant.now().getEpochSecond();
 
         // Convert appId to integer
         int appIdInt;
         try {
-            appIdInt = Integer.parseInt(appId);
+            appIdInt = Integer.parseInt(githubAppId);
         } catch (NumberFormatException e) {
             throw new IllegalArgumentException("App ID must be a valid integer", e);
         }
 
         String jwt = Jwts.builder()
                 .setIssuedAt(Date.from(Instant.ofEpochSecond(now)))
-                .setExpiration(Date.from(Instant.ofEpochSecond(now + 600))) // 10 minutes expiration
+                .setExpiration(Date.from(Instant.ofEpochSecond(now + GITHUB_APP_JWT_TTL_SECONDS))) // 10 minutes expiration
                 .setIssuer(Integer.toString(appIdInt)) // Set as string representation of integer
-                .signWith(SignatureAlgorithm.RS256, privateKey)
+                .signWith(getGithubAppPrivateKey(), SignatureAlgorithm.RS256)
                 .compact();
 
-        return new JwtResponseDTO(jwt, LocalDateTime.ofInstant(Instant.ofEpochSecond(now + 600), ZoneId.systemDefault()));    }
-}
\ No newline at end of file
+        return new JwtResponseDTO(jwt, LocalDateTime.ofInstant(Instant.ofEpochSecond(now + GITHUB_APP_JWT_TTL_SECONDS), ZoneId.systemDefault()));
+    }
+
+    private PrivateKey getGithubAppPrivateKey() throws Exception {
+        PrivateKey privateKey = githubAppPrivateKey;
+        if (privateKey == null) {
+            privateKey = readPrivateKey(githubAppPrivateKeyPath);
+            githubAppPrivateKey = privateKey;
+        }
+        return privateKey;
+    }
+
+    private PrivateKey readPrivateKey(String pemFilePath) throws Exception {
+        try (FileReader keyReader = new FileReader(pemFilePath);
+             PEMParser pemParser = new PEMParser(keyReader)) {
+
+            JcaPEMKeyConverter converter = new JcaPEMKeyConverter();
+            Object keyPair = pemParser.readObject();
+
+            if (keyPair instanceof PEMKeyPair) {
+                return converter.getPrivateKey(((PEMKeyPair) keyPair).getPrivateKeyInfo());
+            }
+            return converter.getPrivateKey((PrivateKeyInfo) keyPair);
+        }
+    }
+}
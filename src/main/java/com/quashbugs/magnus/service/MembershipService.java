@@ -0,0 +1,61 @@
+package com.quashbugs.magnus.service;
+
+import com.quashbugs.magnus.model.Member;
+import com.quashbugs.magnus.model.User;
+import com.quashbugs.magnus.repository.MemberRepository;
+import com.quashbugs.magnus.repository.RepoRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Answers which organisations, and through them which repos, a user may see. Used by the push
+ * channels (SSE, WebSocket, status polling) before they hand out a tenant's events.
+ */
+@Service
+public class MembershipService {
+
+    private final MemberRepository memberRepository;
+    private final RepoRepository repoRepository;
+
+    @Autowired
+    public MembershipService(MemberRepository memberRepository, RepoRepository repoRepository) {
+        this.memberRepository = memberRepository;
+        this.repoRepository = repoRepository;
+    }
+
+    public Set<String> organisationIds(User user) {
+        List<String> ids = memberRepository.findByUser(user)
+                .map(Member::getOrganisationIds)
+                .orElse(null);
+        return ids != null ? new HashSet<>(ids) : Set.of();
+    }
+
+    public boolean isMember(User user, String orgId) {
+        return orgId != null && organisationIds(user).contains(orgId);
+    }
+
+    public boolean canAccessRepo(User user, String repoId) {
+        return repoRepository.findById(repoId)
+                .map(repo -> repo.getOrganisation() != null && isMember(user, repo.getOrganisation().getId()))
+                .orElse(false);
+    }
+
+    /**
+     * True if every one of the repos exists and belongs to one of the user's organisations.
+     */
+    public boolean canAccessRepos(User user, Collection<String> repoIds) {
+        Set<String> organisationIds = organisationIds(user);
+        Set<String> accessible = new HashSet<>();
+        repoRepository.findAllById(repoIds).forEach(repo -> {
+            if (repo.getOrganisation() != null && organisationIds.contains(repo.getOrganisation().getId())) {
+                accessible.add(repo.getId());
+            }
+        });
+        return accessible.containsAll(repoIds);
+    }
+}
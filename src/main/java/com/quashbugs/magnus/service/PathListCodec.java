@@ -0,0 +1,107 @@
+package com.quashbugs.magnus.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Front-coded path lists: each path is stored as the number of leading bytes it shares with the
+ * previous one plus the remaining bytes, so the directory prefixes of a sorted listing are written
+ * once. Lengths are unsigned varints. Optionally gzipped on top.
+ */
+final class PathListCodec {
+
+    static final String FRONT_CODED = "front-coded";
+    static final String FRONT_CODED_GZIP = "front-coded+gzip";
+
+    private PathListCodec() {
+    }
+
+    /**
+     * Encodes {@code sortedPaths}; any order round-trips, sorted input just compresses best.
+     */
+    static byte[] encode(List<String> sortedPaths, boolean gzip) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = gzip ? new GZIPOutputStream(bytes) : bytes) {
+            writeVarint(out, sortedPaths.size());
+            byte[] previous = new byte[0];
+            for (String path : sortedPaths) {
+                byte[] current = path.getBytes(StandardCharsets.UTF_8);
+                int shared = 0;
+                int max = Math.min(previous.length, current.length);
+                while (shared < max && previous[shared] == current[shared]) {
+                    shared++;
+                }
+                writeVarint(out, shared);
+                writeVarint(out, current.length - shared);
+                out.write(current, shared, current.length - shared);
+                previous = current;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static List<String> decode(byte[] data, String encoding) {
+        boolean gzip = FRONT_CODED_GZIP.equals(encoding);
+        if (!gzip && !FRONT_CODED.equals(encoding)) {
+            throw new IllegalArgumentException("Unknown path list encoding: " + encoding);
+        }
+        try (DataInputStream in = new DataInputStream(gzip
+                ? new GZIPInputStream(new ByteArrayInputStream(data))
+                : new ByteArrayInputStream(data))) {
+            int count = readVarint(in);
+            List<String> paths = new ArrayList<>(count);
+            byte[] previous = new byte[0];
+            for (int i = 0; i < count; i++) {
+                int shared = readVarint(in);
+                int suffix = readVarint(in);
+                if (shared > previous.length) {
+                    throw new IOException("Corrupt path list at entry " + i);
+                }
+                byte[] current = new byte[shared + suffix];
+                System.arraycopy(previous, 0, current, 0, shared);
+                in.readFully(current, shared, suffix);
+                paths.add(new String(current, StandardCharsets.UTF_8));
+                previous = current;
+            }
+            return paths;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated path list");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in path list");
+    }
+}
@@ -0,0 +1,245 @@
+package com.quashbugs.magnus.service;
+
+import com.quashbugs.magnus.dto.MobileProjectInfoDTO;
+import com.quashbugs.magnus.model.MobileDetectorService;
+import com.quashbugs.magnus.model.RepoFileIndex;
+import com.quashbugs.magnus.model.RepoFileTree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Keeps the per-repo file index that mobile detection was last run on, and re-scores a repo from
+ * the paths a push added and removed. Detection only looks at file paths, so modified files never
+ * change the result. The paths of every indexed tree are stored per (repo, tree SHA) as a
+ * front-coded blob, so detecting a tree that was listed before needs no listing at all. Trees
+ * rebuilt from pushes are stored as derived: later pushes are applied to them, but they are never
+ * handed out as the listing of their SHA, since a replay can drift from the real tree.
+ */
+@Service
+public class RepoFileIndexService {
+
+    /**
+     * The paths one pushed commit added and removed.
+     */
+    public record CommitChanges(List<String> added, List<String> removed) {
+    }
+
+    // Stays clear of Mongo's 16 MB document limit; GitHub truncates tree listings long before this
+    private static final int MAX_TREE_BYTES = 15 * 1024 * 1024;
+
+    @Value("${spring.detection.file.index.gzip:true}")
+    private boolean gzip;
+
+    @Value("${spring.detection.file.index.retained.trees:5}")
+    private int retainedTrees;
+
+    private final MongoTemplate mongoTemplate;
+    private final MobileDetectorService mobileDetectorService;
+    private static final Logger LOGGER = LoggerFactory.getLogger(RepoFileIndexService.class);
+
+    @Autowired
+    public RepoFileIndexService(MongoTemplate mongoTemplate, MobileDetectorService mobileDetectorService) {
+        this.mongoTemplate = mongoTemplate;
+        this.mobileDetectorService = mobileDetectorService;
+    }
+
+    /**
+     * The paths of a tree listed by an earlier detection, if there is one.
+     */
+    public Optional<List<String>> loadTree(String repoId, String treeSha) {
+        return loadTree(repoId, treeSha, false);
+    }
+
+    private Optional<List<String>> loadTree(String repoId, String treeSha, boolean acceptDerived) {
+        if (treeSha == null) {
+            return Optional.empty();
+        }
+        Query query = treeQuery(repoId, treeSha);
+        if (!acceptDerived) {
+            query.addCriteria(Criteria.where("derived").ne(true));
+        }
+        RepoFileTree tree = mongoTemplate.findOne(query, RepoFileTree.class);
+        if (tree == null) {
+            return Optional.empty();
+        }
+        return Optional.of(PathListCodec.decode(tree.getData(), tree.getEncoding()));
+    }
+
+    /**
+     * The commit the repo's index is at, or null if it has none. Read before listing a tree and
+     * passed to {@link #rebuild} so the listing cannot replace an index that moved on meanwhile.
+     */
+    public String indexedCommit(String repoId) {
+        Query query = new Query(Criteria.where("_id").is(repoId));
+        query.fields().include("commitSha");
+        RepoFileIndex index = mongoTemplate.findOne(query, RepoFileIndex.class);
+        return index != null ? index.getCommitSha() : null;
+    }
+
+    /**
+     * Replaces the repo's index with the full listing of {@code commitSha} and returns its detection
+     * result. Empty if the index is no longer at {@code expectedCommitSha} (null for no index): a
+     * push or another detection run stored a result while this tree was being listed, and a late,
+     * older listing must not replace it.
+     */
+    public Optional<MobileProjectInfoDTO> rebuild(String repoId, String branch, String expectedCommitSha,
+                                                  String commitSha, String treeSha, Collection<String> paths) {
+        storeTree(repoId, treeSha, paths, false);
+        int[] counts = mobileDetectorService.countClauses(paths);
+        // A missing commitSha matches null, so without an index this inserts one
+        Query query = new Query(Criteria.where("_id").is(repoId).and("commitSha").is(expectedCommitSha));
+        Update update = new Update()
+                .set("branch", branch)
+                .set("commitSha", commitSha)
+                .set("treeSha", treeSha)
+                .set("clauseCounts", counts)
+                .set("ruleSetFingerprint", mobileDetectorService.ruleSetFingerprint())
+                .set("updatedAt", LocalDateTime.now());
+        try {
+            mongoTemplate.upsert(query, update, RepoFileIndex.class);
+        } catch (DuplicateKeyException e) {
+            // The upsert found no index at the expected commit and collided with the one that is there
+            LOGGER.info("File index of repo {} moved past {} while {} was listed", repoId, expectedCommitSha, commitSha);
+            return Optional.empty();
+        }
+        pruneTrees(repoId, treeSha);
+        return Optional.of(mobileDetectorService.analyzeClauseCounts(counts));
+    }
+
+    /**
+     * Moves the index from {@code before} to {@code after} by replaying the pushed commits in order,
+     * and returns the new detection result. Empty if the index is missing or not at {@code before}
+     * (a push was missed, or another delivery moved it on first); the caller has to rebuild it.
+     * <p>
+     * Modified paths are not needed: detection reads nothing but the set of paths, and a modified
+     * file keeps its path, while a rename is reported as a removal and an addition. The replay works
+     * on that set, so a path added or removed twice, as happens when a merge commit repeats the
+     * changes of the branch commits pushed with it, only counts once.
+     */
+    public Optional<MobileProjectInfoDTO> applyPush(String repoId, String before, String after, String treeSha,
+                                                    List<CommitChanges> commits) {
+        RepoFileIndex index = mongoTemplate.findById(repoId, RepoFileIndex.class);
+        if (index == null || !before.equals(index.getCommitSha()) || treeSha == null) {
+            return Optional.empty();
+        }
+        // The index's own tree may be a derived one from the previous push
+        Optional<List<String>> storedPaths = loadTree(repoId, index.getTreeSha(), true);
+        if (storedPaths.isEmpty()) {
+            return Optional.empty();
+        }
+
+        Set<String> paths = new HashSet<>(storedPaths.get());
+        int[] counts = mobileDetectorService.ruleSetFingerprint().equals(index.getRuleSetFingerprint())
+                ? index.getClauseCounts()
+                : mobileDetectorService.countClauses(paths);
+        for (CommitChanges commit : commits) {
+            for (String path : commit.removed()) {
+                if (paths.remove(path)) {
+                    mobileDetectorService.applyPathChange(counts, path, -1);
+                }
+            }
+            for (String path : commit.added()) {
+                if (paths.add(path)) {
+                    mobileDetectorService.applyPathChange(counts, path, 1);
+                }
+            }
+        }
+
+        storeTree(repoId, treeSha, paths, true);
+        Query query = new Query(Criteria.where("_id").is(repoId).and("commitSha").is(before));
+        Update update = new Update()
+                .set("commitSha", after)
+                .set("treeSha", treeSha)
+                .set("clauseCounts", counts)
+                .set("ruleSetFingerprint", mobileDetectorService.ruleSetFingerprint())
+                .set("updatedAt", LocalDateTime.now());
+        if (mongoTemplate.updateFirst(query, update, RepoFileIndex.class).getMatchedCount() == 0) {
+            LOGGER.info("File index of repo {} moved past {} concurrently", repoId, before);
+            return Optional.empty();
+        }
+        pruneTrees(repoId, treeSha);
+        return Optional.of(mobileDetectorService.analyzeClauseCounts(counts));
+    }
+
+    // A tree's content never changes, so one that is already stored is left as it is; only a listing
+    // replaces a derived copy of the same tree
+    private void storeTree(String repoId, String treeSha, Collection<String> paths, boolean derived) {
+        if (treeSha == null) {
+            return;
+        }
+        Query stored = treeQuery(repoId, treeSha);
+        if (!derived) {
+            stored.addCriteria(Criteria.where("derived").ne(true));
+        }
+        if (mongoTemplate.exists(stored, RepoFileTree.class)) {
+            return;
+        }
+        byte[] data = PathListCodec.encode(sorted(paths), gzip);
+        if (data.length > MAX_TREE_BYTES) {
+            LOGGER.warn("Not storing file tree {} of repo {}, {} paths encode to {} bytes",
+                    treeSha, repoId, paths.size(), data.length);
+            return;
+        }
+        if (!derived) {
+            mongoTemplate.remove(treeQuery(repoId, treeSha).addCriteria(Criteria.where("derived").is(true)),
+                    RepoFileTree.class);
+        }
+        try {
+            mongoTemplate.insert(RepoFileTree.builder()
+                    .repoId(repoId)
+                    .treeSha(treeSha)
+                    .encoding(gzip ? PathListCodec.FRONT_CODED_GZIP : PathListCodec.FRONT_CODED)
+                    .pathCount(paths.size())
+                    .derived(derived)
+                    .data(data)
+                    .createdAt(LocalDateTime.now())
+                    .build());
+        } catch (DuplicateKeyException e) {
+            // Stored concurrently by another delivery or detection run
+            return;
+        }
+        LOGGER.debug("Stored {} file tree {} of repo {}: {} paths in {} bytes",
+                derived ? "derived" : "listed", treeSha, repoId, paths.size(), data.length);
+    }
+
+    // Keeps the current tree and the most recent others, for pushes that are reverted or redelivered
+    private void pruneTrees(String repoId, String currentTreeSha) {
+        Query older = new Query(Criteria.where("repoId").is(repoId).and("treeSha").ne(currentTreeSha))
+                .with(Sort.by(Sort.Direction.DESC, "createdAt"))
+                .skip(Math.max(0, retainedTrees - 1));
+        older.fields().include("_id");
+        List<String> ids = mongoTemplate.find(older, RepoFileTree.class).stream()
+                .map(RepoFileTree::getId)
+                .toList();
+        if (!ids.isEmpty()) {
+            mongoTemplate.remove(new Query(Criteria.where("_id").in(ids)), RepoFileTree.class);
+        }
+    }
+
+    private static Query treeQuery(String repoId, String treeSha) {
+        return new Query(Criteria.where("repoId").is(repoId).and("treeSha").is(treeSha));
+    }
+
+    private static List<String> sorted(Collection<String> paths) {
+        List<String> sorted = new ArrayList<>(paths);
+        sorted.sort(null);
+        return sorted;
+    }
+}
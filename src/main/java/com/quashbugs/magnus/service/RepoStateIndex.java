@@ -0,0 +1,368 @@
+package com.quashbugs.magnus.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.quashbugs.magnus.dto.RepoStatusDTO;
+import com.quashbugs.magnus.model.ClusterEventBatch;
+import com.quashbugs.magnus.model.Repo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * In-memory index of repo status snapshots, keyed by repo id and versioned by
+ * {@link Repo#getStateVersion()}. After every write to a repo it is given a new version, taken
+ * from one counter in Mongo, and the document as stored with that version refreshes the index
+ * here and, through the cluster event bus, on the other nodes; status polls are then answered
+ * from memory and long polls are woken as soon as one of their repos changes. Versions are only
+ * handed out by the counter, so a save of a stale entity cannot make two states share a version.
+ * <p>
+ * Without the cluster event bus this node does not hear of writes made on other nodes, so every
+ * poll first compares the cached versions with the stored ones (a read of {@code stateVersion}
+ * only) and reloads the repos that moved on; long polls are re-checked the same way on a timer.
+ * Only repos that are polled are kept, and they are evicted once nobody has read them for the TTL
+ * or beyond the size limit, least recently read first.
+ */
+@Service
+public class RepoStateIndex extends AbstractMongoEventListener<Repo> {
+
+    private static final String VERSION_COUNTER_COLLECTION = "repo_state_versions";
+    private static final String VERSION_COUNTER_ID = "stateVersion";
+    private static final int MAX_REFRESH_ATTEMPTS = 5;
+    // Event name of a cluster message that drops repos from the index instead of updating one
+    private static final String REMOVED_EVENT = "removed";
+
+    @Value("${spring.repo.status.cache.max:10000}")
+    private int maxCachedStatuses;
+
+    @Value("${spring.repo.status.cache.ttl.seconds:600}")
+    private long cacheTtlSeconds;
+
+    private final MongoTemplate mongoTemplate;
+    private final ClusterEventBus clusterEventBus;
+    private final ObjectMapper objectMapper;
+    private final Map<String, CachedStatus> statuses = new ConcurrentHashMap<>();
+    // repo id -> long polls waiting for it to change
+    private final Map<String, Set<Runnable>> waiters = new ConcurrentHashMap<>();
+    private final AtomicBoolean counterSeeded = new AtomicBoolean();
+    private static final Logger LOGGER = LoggerFactory.getLogger(RepoStateIndex.class);
+
+    @Autowired
+    public RepoStateIndex(MongoTemplate mongoTemplate,
+                          ClusterEventBus clusterEventBus,
+                          ObjectMapper objectMapper) {
+        this.mongoTemplate = mongoTemplate;
+        this.clusterEventBus = clusterEventBus;
+        this.objectMapper = objectMapper;
+        clusterEventBus.register(ClusterEventBus.REPO_STATE_CHANNEL, message -> {
+            if (REMOVED_EVENT.equals(message.getEventName())) {
+                statuses.remove(message.getRepoId());
+                return;
+            }
+            try {
+                apply(objectMapper.readValue(message.getData(), RepoStatusDTO.class));
+            } catch (JsonProcessingException e) {
+                LOGGER.error("Error reading repo state from cluster: {}", e.getMessage(), e);
+            }
+        });
+    }
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<Repo> event) {
+        refresh(event.getSource().getId());
+    }
+
+    /**
+     * Gives the stored repo a new version and publishes the document as it is stored with it.
+     * Called after every write to a repo, so the version always names what Mongo holds.
+     */
+    public void refresh(String repoId) {
+        for (int attempt = 0; attempt < MAX_REFRESH_ATTEMPTS; attempt++) {
+            long version = allocateVersions(1);
+            Query query = new Query(Criteria.where("_id").is(repoId).andOperator(olderThan(version)));
+            // Only what the index needs comes back; the organisation reference is not resolved
+            query.fields().exclude("appSummary").exclude("organisation");
+            Repo stored = mongoTemplate.findAndModify(query, new Update().set("stateVersion", version),
+                    FindAndModifyOptions.options().returnNew(true), Repo.class);
+            if (stored != null) {
+                update(RepoStatusDTO.from(stored));
+                return;
+            }
+
+            // Either the repo is gone or a later version is stored already; catch the counter up to it
+            Query current = new Query(Criteria.where("_id").is(repoId));
+            current.fields().include("stateVersion");
+            Repo repo = mongoTemplate.findOne(current, Repo.class);
+            if (repo == null) {
+                return;
+            }
+            raiseCounter(repo.getStateVersion());
+        }
+        LOGGER.warn("Could not give repo {} a new state version after {} attempts", repoId, MAX_REFRESH_ATTEMPTS);
+    }
+
+    /**
+     * Reserves {@code count} consecutive state versions and returns the first.
+     */
+    public long allocateVersions(int count) {
+        seedCounter();
+        Document counter = mongoTemplate.findAndModify(
+                new Query(Criteria.where("_id").is(VERSION_COUNTER_ID)),
+                new Update().inc("seq", (long) count),
+                FindAndModifyOptions.options().returnNew(true).upsert(true),
+                Document.class, VERSION_COUNTER_COLLECTION);
+        return ((Number) counter.get("seq")).longValue() - count + 1;
+    }
+
+    /**
+     * Matches a repo whose stored version is below {@code version}, so a version is only ever
+     * written over an older one.
+     */
+    public static Criteria olderThan(long version) {
+        return new Criteria().orOperator(
+                Criteria.where("stateVersion").lt(version),
+                Criteria.where("stateVersion").exists(false));
+    }
+
+    // Repos written before the counter existed carry their own versions; the counter starts above them
+    private void seedCounter() {
+        if (counterSeeded.get()) {
+            return;
+        }
+        Query newest = new Query().with(Sort.by(Sort.Direction.DESC, "stateVersion")).limit(1);
+        newest.fields().include("stateVersion");
+        Repo repo = mongoTemplate.findOne(newest, Repo.class);
+        raiseCounter(repo != null ? repo.getStateVersion() : 0);
+        counterSeeded.set(true);
+    }
+
+    private void raiseCounter(long version) {
+        mongoTemplate.upsert(new Query(Criteria.where("_id").is(VERSION_COUNTER_ID)),
+                new Update().max("seq", version), VERSION_COUNTER_COLLECTION);
+    }
+
+    /**
+     * Records a status written to Mongo on this node and shares it with the rest of the cluster.
+     */
+    public void update(RepoStatusDTO status) {
+        apply(status);
+        try {
+            clusterEventBus.publish(new ClusterEventBatch.Message(ClusterEventBus.REPO_STATE_CHANNEL,
+                    status.getStateVersion(), null, objectMapper.writeValueAsString(status), status.getId(), null, null));
+        } catch (JsonProcessingException e) {
+            LOGGER.error("Error sharing repo state for repo {}: {}", status.getId(), e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Drops deleted repos from the index here and on the rest of the cluster.
+     */
+    public void remove(Collection<String> repoIds) {
+        for (String repoId : repoIds) {
+            statuses.remove(repoId);
+            clusterEventBus.publish(new ClusterEventBatch.Message(ClusterEventBus.REPO_STATE_CHANNEL,
+                    0, REMOVED_EVENT, null, repoId, null, null));
+        }
+    }
+
+    // Repos nobody polls on this node are not cached; a later poll reads them from Mongo
+    private void apply(RepoStatusDTO status) {
+        if (!statuses.containsKey(status.getId()) && !waiters.containsKey(status.getId())) {
+            return;
+        }
+        store(status);
+    }
+
+    private void store(RepoStatusDTO status) {
+        CachedStatus incoming = new CachedStatus(status);
+        CachedStatus current = statuses.merge(status.getId(), incoming, (existing, next) -> {
+            if (next.status.getStateVersion() <= existing.status.getStateVersion()) {
+                return existing;
+            }
+            next.lastReadAt = existing.lastReadAt;
+            return next;
+        });
+        if (current == incoming) {
+            Set<Runnable> repoWaiters = waiters.get(status.getId());
+            if (repoWaiters != null) {
+                repoWaiters.forEach(Runnable::run);
+            }
+        }
+    }
+
+    /**
+     * Returns the statuses of the given repos whose version differs from the one the client holds.
+     * A repo the client has no version for is always returned.
+     */
+    public List<RepoStatusDTO> changedSince(Map<String, Long> knownVersions) {
+        catchUp(knownVersions.keySet());
+        return cachedChangesSince(knownVersions);
+    }
+
+    private List<RepoStatusDTO> cachedChangesSince(Map<String, Long> knownVersions) {
+        long now = System.currentTimeMillis();
+        List<RepoStatusDTO> changed = new ArrayList<>();
+        knownVersions.forEach((repoId, version) -> {
+            CachedStatus cached = statuses.get(repoId);
+            if (cached == null) {
+                return;
+            }
+            cached.lastReadAt = now;
+            if (version == null || cached.status.getStateVersion() != version) {
+                changed.add(cached.status);
+            }
+        });
+        return changed;
+    }
+
+    /**
+     * Calls {@code onChange} once, as soon as one of the given repos differs from the version the
+     * client holds. Returns a handle that stops waiting; it must be run when the caller gives up.
+     */
+    public Runnable awaitChanges(Map<String, Long> knownVersions, Consumer<List<RepoStatusDTO>> onChange) {
+        Runnable check = new Runnable() {
+            private boolean notified;
+
+            @Override
+            public synchronized void run() {
+                if (notified) {
+                    return;
+                }
+                List<RepoStatusDTO> changed = cachedChangesSince(knownVersions);
+                if (!changed.isEmpty()) {
+                    notified = true;
+                    onChange.accept(changed);
+                }
+            }
+        };
+
+        catchUp(knownVersions.keySet());
+        knownVersions.keySet().forEach(repoId ->
+                waiters.compute(repoId, (key, repoWaiters) -> {
+                    Set<Runnable> updated = repoWaiters != null ? repoWaiters : ConcurrentHashMap.newKeySet();
+                    updated.add(check);
+                    return updated;
+                }));
+        // A change may have landed between the caller's last look and the registration above
+        check.run();
+
+        return () -> knownVersions.keySet().forEach(repoId ->
+                waiters.computeIfPresent(repoId, (key, repoWaiters) -> {
+                    repoWaiters.remove(check);
+                    return repoWaiters.isEmpty() ? null : repoWaiters;
+                }));
+    }
+
+    /**
+     * Without the cluster event bus, long polls are woken by re-reading the versions of the repos
+     * they wait for.
+     */
+    @Scheduled(fixedDelayString = "${spring.repo.status.poll.ms:2000}")
+    public void pollWaitingRepos() {
+        if (clusterEventBus.isEnabled() || waiters.isEmpty()) {
+            return;
+        }
+        syncWithStore(new ArrayList<>(waiters.keySet()));
+    }
+
+    /**
+     * Drops statuses nobody has read for the TTL, and beyond the size limit the least recently
+     * read ones regardless of the TTL. Repos with a waiting long poll are kept.
+     */
+    @Scheduled(fixedDelayString = "${spring.repo.status.cache.sweep.ms:60000}")
+    public void evictIdleStatuses() {
+        long cutoff = System.currentTimeMillis() - cacheTtlSeconds * 1000;
+        // Snapshot the times, they keep changing while we sort
+        List<Map.Entry<String, Long>> idle = new ArrayList<>();
+        statuses.forEach((repoId, cached) -> {
+            if (!waiters.containsKey(repoId)) {
+                idle.add(Map.entry(repoId, cached.lastReadAt));
+            }
+        });
+        idle.sort(Map.Entry.comparingByValue());
+
+        int overLimit = statuses.size() - maxCachedStatuses;
+        for (int i = 0; i < idle.size(); i++) {
+            long readBefore = i < overLimit ? Long.MAX_VALUE : cutoff;
+            statuses.computeIfPresent(idle.get(i).getKey(), (repoId, cached) ->
+                    !waiters.containsKey(repoId) && cached.lastReadAt < readBefore ? null : cached);
+        }
+    }
+
+    int cachedStatusCount() {
+        return statuses.size();
+    }
+
+    private void catchUp(Collection<String> repoIds) {
+        if (clusterEventBus.isEnabled()) {
+            loadMissing(repoIds);
+        } else {
+            syncWithStore(repoIds);
+        }
+    }
+
+    private void loadMissing(Collection<String> repoIds) {
+        List<String> missing = repoIds.stream()
+                .filter(repoId -> !statuses.containsKey(repoId))
+                .toList();
+        load(missing);
+    }
+
+    // Reads only the stored versions, then reloads the repos whose version is not the cached one
+    private void syncWithStore(Collection<String> repoIds) {
+        Query versions = new Query(Criteria.where("_id").in(repoIds));
+        versions.fields().include("stateVersion");
+        Set<String> stored = new HashSet<>();
+        List<String> stale = new ArrayList<>();
+        for (Repo repo : mongoTemplate.find(versions, Repo.class)) {
+            stored.add(repo.getId());
+            CachedStatus cached = statuses.get(repo.getId());
+            if (cached == null || cached.status.getStateVersion() != repo.getStateVersion()) {
+                stale.add(repo.getId());
+            }
+        }
+        repoIds.stream().filter(repoId -> !stored.contains(repoId)).forEach(statuses::remove);
+        load(stale);
+    }
+
+    private void load(List<String> repoIds) {
+        if (repoIds.isEmpty()) {
+            return;
+        }
+        Query query = new Query(Criteria.where("_id").in(repoIds));
+        // Only what the index needs comes back; the organisation reference is not resolved
+        query.fields().exclude("appSummary").exclude("organisation");
+        mongoTemplate.find(query, Repo.class).forEach(repo -> store(RepoStatusDTO.from(repo)));
+    }
+
+    private static final class CachedStatus {
+        private final RepoStatusDTO status;
+        private volatile long lastReadAt = System.currentTimeMillis();
+
+        private CachedStatus(RepoStatusDTO status) {
+            this.status = status;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.quashbugs.magnus.service;
+
+import com.quashbugs.magnus.model.WebhookDelivery;
+import com.quashbugs.magnus.model.WebhookDeliveryState;
+import com.quashbugs.magnus.repository.WebhookDeliveryRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persists incoming GitHub webhook deliveries and processes them on a bounded worker pool,
+ * so the webhook endpoint can acknowledge GitHub without waiting on the processing itself.
+ * A delivery being processed is leased to its node, which keeps renewing the lease; only
+ * deliveries whose lease ran out (the node stopped) are handed to another node.
+ */
+@Service
+public class WebhookIngestionService {
+
+    // Deliveries left in RECEIVED for longer than this (pool was saturated, node restarted) are re-queued
+    private static final long REDISPATCH_AFTER_SECONDS = 30;
+
+    @Value("${spring.webhook.deliveries.lease.seconds:120}")
+    private long leaseSeconds;
+
+    private final WebhookDeliveryRepository webhookDeliveryRepository;
+    private final MongoTemplate mongoTemplate;
+    private final GithubService githubService;
+    private final IdempotencyService idempotencyService;
+    private final ThreadPoolTaskExecutor webhookTaskExecutor;
+    private final Set<String> queuedDeliveries = ConcurrentHashMap.newKeySet();
+    private final Set<String> processingDeliveries = ConcurrentHashMap.newKeySet();
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Counter acceptedCounter;
+    private final Counter duplicateCounter;
+    private final Counter rejectedCounter;
+    private final Counter processedCounter;
+    private final Counter failedCounter;
+    private final Timer processingTimer;
+    private static final Logger LOGGER = LoggerFactory.getLogger(WebhookIngestionService.class);
+
+    @Autowired
+    public WebhookIngestionService(WebhookDeliveryRepository webhookDeliveryRepository,
+                                   MongoTemplate mongoTemplate,
+                                   GithubService githubService,
+                                   IdempotencyService idempotencyService,
+                                   @Qualifier("webhookTaskExecutor") ThreadPoolTaskExecutor webhookTaskExecutor,
+                                   MeterRegistry meterRegistry) {
+        this.webhookDeliveryRepository = webhookDeliveryRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.githubService = githubService;
+        this.idempotencyService = idempotencyService;
+        this.webhookTaskExecutor = webhookTaskExecutor;
+
+        this.acceptedCounter = deliveryCounter(meterRegistry, "accepted");
+        this.duplicateCounter = deliveryCounter(meterRegistry, "duplicate");
+        this.rejectedCounter = deliveryCounter(meterRegistry, "rejected");
+        this.processedCounter = deliveryCounter(meterRegistry, "processed");
+        this.failedCounter = deliveryCounter(meterRegistry, "failed");
+        this.processingTimer = Timer.builder("webhook.processing")
+                .description("Time spent processing a webhook delivery")
+                .register(meterRegistry);
+        Gauge.builder("webhook.queue.size", webhookTaskExecutor,
+                        executor -> executor.getThreadPoolExecutor().getQueue().size())
+                .description("Webhook deliveries waiting for a worker")
+                .register(meterRegistry);
+        Gauge.builder("webhook.queue.remaining", webhookTaskExecutor,
+                        executor -> executor.getThreadPoolExecutor().getQueue().remainingCapacity())
+                .description("Free slots in the webhook worker queue")
+                .register(meterRegistry);
+        Gauge.builder("webhook.workers.active", webhookTaskExecutor, ThreadPoolTaskExecutor::getActiveCount)
+                .description("Webhook workers currently processing a delivery")
+                .register(meterRegistry);
+    }
+
+    private static Counter deliveryCounter(MeterRegistry meterRegistry, String outcome) {
+        return Counter.builder("webhook.deliveries")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Stores the delivery and queues it for processing. Returns once the delivery is durable;
+     * a delivery the pool cannot take right now stays RECEIVED and is picked up by the sweeper.
+     * Redeliveries are dropped unless the earlier attempt failed, in which case it is retried.
+     */
+    public void accept(String deliveryId, String eventType, String payload) {
+        boolean hasDeliveryId = deliveryId != null && !deliveryId.isBlank();
+        if (hasDeliveryId && !idempotencyService.markFirstSeen(IdempotencyService.githubDeliveryKey(deliveryId))) {
+            LOGGER.info("Ignoring redelivery of GitHub webhook {}", deliveryId);
+            duplicateCounter.increment();
+            return;
+        }
+
+        WebhookDelivery delivery = WebhookDelivery.builder()
+                .id(hasDeliveryId ? deliveryId : UUID.randomUUID().toString())
+                .eventType(eventType)
+                .payload(payload)
+                .state(WebhookDeliveryState.RECEIVED)
+                .receivedAt(LocalDateTime.now())
+                .build();
+
+        try {
+            webhookDeliveryRepository.insert(delivery);
+        } catch (DuplicateKeyException e) {
+            if (!retryFailed(delivery.getId())) {
+                LOGGER.info("Ignoring redelivery of GitHub webhook {}", delivery.getId());
+                duplicateCounter.increment();
+                return;
+            }
+        } catch (RuntimeException e) {
+            if (hasDeliveryId) {
+                idempotencyService.release(IdempotencyService.githubDeliveryKey(deliveryId));
+            }
+            throw e;
+        }
+
+        acceptedCounter.increment();
+        dispatch(delivery.getId());
+    }
+
+    private boolean retryFailed(String deliveryId) {
+        Query query = new Query(Criteria.where("_id").is(deliveryId)
+                .and("state").is(WebhookDeliveryState.FAILED));
+        return mongoTemplate.updateFirst(query,
+                // Unset so the expiry index does not remove the delivery while it is retried
+                new Update().set("state", WebhookDeliveryState.RECEIVED).unset("processedAt"),
+                WebhookDelivery.class).getModifiedCount() > 0;
+    }
+
+    private void dispatch(String deliveryId) {
+        if (!queuedDeliveries.add(deliveryId)) {
+            return;
+        }
+        try {
+            webhookTaskExecutor.execute(() -> {
+                try {
+                    process(deliveryId);
+                } finally {
+                    queuedDeliveries.remove(deliveryId);
+                }
+            });
+        } catch (TaskRejectedException e) {
+            queuedDeliveries.remove(deliveryId);
+            rejectedCounter.increment();
+            LOGGER.warn("Webhook worker queue is full, delivery {} will be retried by the sweeper", deliveryId);
+        }
+    }
+
+    private void process(String deliveryId) {
+        WebhookDelivery delivery = claim(deliveryId);
+        if (delivery == null) {
+            return;
+        }
+
+        processingDeliveries.add(deliveryId);
+        Timer.Sample sample = Timer.start();
+        try {
+            if ("pull_request".equals(delivery.getEventType())) {
+                githubService.processPullRequestEvent(delivery.getPayload());
+            } else if ("push".equals(delivery.getEventType())) {
+                githubService.processPushEvent(delivery.getPayload());
+            }
+            complete(deliveryId, WebhookDeliveryState.PROCESSED, null);
+            processedCounter.increment();
+        } catch (Exception e) {
+            LOGGER.error("Error processing GitHub webhook {}: {}", deliveryId, e.getMessage(), e);
+            complete(deliveryId, WebhookDeliveryState.FAILED, e.getMessage());
+            idempotencyService.release(IdempotencyService.githubDeliveryKey(deliveryId));
+            failedCounter.increment();
+        } finally {
+            processingDeliveries.remove(deliveryId);
+            sample.stop(processingTimer);
+        }
+    }
+
+    // Moves RECEIVED -> PROCESSING atomically so a delivery is never handled twice
+    private WebhookDelivery claim(String deliveryId) {
+        Query query = new Query(Criteria.where("_id").is(deliveryId)
+                .and("state").is(WebhookDeliveryState.RECEIVED));
+        LocalDateTime now = LocalDateTime.now();
+        Update update = new Update()
+                .set("state", WebhookDeliveryState.PROCESSING)
+                .set("processingOwner", nodeId)
+                .set("processingStartedAt", now)
+                .set("leaseExpiresAt", now.plusSeconds(leaseSeconds))
+                .inc("attempts", 1);
+        return mongoTemplate.findAndModify(query, update,
+                FindAndModifyOptions.options().returnNew(true), WebhookDelivery.class);
+    }
+
+    // Only the lease holder completes the delivery; if the lease was lost, another node owns it now
+    private void complete(String deliveryId, WebhookDeliveryState state, String error) {
+        Query query = new Query(Criteria.where("_id").is(deliveryId)
+                .and("state").is(WebhookDeliveryState.PROCESSING)
+                .and("processingOwner").is(nodeId));
+        Update update = new Update()
+                .set("state", state)
+                .set("error", error)
+                .set("processedAt", LocalDateTime.now())
+                .set("processingOwner", null)
+                .set("leaseExpiresAt", null);
+        // A failed delivery keeps its payload for a retry; a processed one has no further use for it
+        if (state == WebhookDeliveryState.PROCESSED) {
+            update.unset("payload");
+        }
+        if (mongoTemplate.updateFirst(query, update, WebhookDelivery.class).getMatchedCount() == 0) {
+            LOGGER.warn("Lost the lease on GitHub webhook {}, leaving it to its new owner", deliveryId);
+        }
+    }
+
+    /**
+     * Extends the lease of every delivery still being processed here.
+     */
+    @Scheduled(fixedDelayString = "${spring.webhook.deliveries.heartbeat.ms:30000}")
+    public void heartbeat() {
+        if (processingDeliveries.isEmpty()) {
+            return;
+        }
+        Query query = new Query(Criteria.where("_id").in(processingDeliveries)
+                .and("state").is(WebhookDeliveryState.PROCESSING)
+                .and("processingOwner").is(nodeId));
+        mongoTemplate.updateMulti(query,
+                new Update().set("leaseExpiresAt", LocalDateTime.now().plusSeconds(leaseSeconds)), WebhookDelivery.class);
+    }
+
+    @Scheduled(fixedDelay = REDISPATCH_AFTER_SECONDS * 1000, initialDelay = REDISPATCH_AFTER_SECONDS * 1000)
+    public void redispatchPendingDeliveries() {
+        LocalDateTime cutoff = LocalDateTime.now().minusSeconds(REDISPATCH_AFTER_SECONDS);
+        webhookDeliveryRepository.findByStateAndReceivedAtBefore(WebhookDeliveryState.RECEIVED, cutoff)
+                .forEach(delivery -> dispatch(delivery.getId()));
+    }
+
+    // Deliveries that were mid-flight on a node that stopped renewing their lease are handed back
+    // to the pool; deliveries still leased by a live node are left alone
+    @Scheduled(fixedDelay = REDISPATCH_AFTER_SECONDS * 1000, initialDelay = REDISPATCH_AFTER_SECONDS * 1000)
+    public void recoverExpiredLeases() {
+        Query query = new Query(Criteria.where("state").is(WebhookDeliveryState.PROCESSING)
+                .orOperator(Criteria.where("leaseExpiresAt").lt(LocalDateTime.now()),
+                        // Claimed before deliveries carried a lease
+                        Criteria.where("leaseExpiresAt").is(null)));
+        Update update = new Update()
+                .set("state", WebhookDeliveryState.RECEIVED)
+                .set("processingOwner", null)
+                .set("leaseExpiresAt", null);
+        long recovered = mongoTemplate.updateMulti(query, update, WebhookDelivery.class).getModifiedCount();
+        if (recovered > 0) {
+            LOGGER.info("Re-queued {} GitHub webhook deliveries with expired leases", recovered);
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void recoverInterruptedDeliveries() {
+        recoverExpiredLeases();
+        webhookDeliveryRepository.findByState(WebhookDeliveryState.RECEIVED)
+                .forEach(delivery -> dispatch(delivery.getId()));
+    }
+}
@@ -10,6 +10,7 @@ import com.quashbugs.magnus.dto.PrCallbackDataDTO;
 import com.quashbugs.magnus.model.*;
 import com.quashbugs.magnus.repository.PullRequestRepository;
 import com.quashbugs.magnus.repository.RepoRepository;
+import com.quashbugs.magnus.repository.RepoStateRepository;
 import com.quashbugs.magnus.repository.TestCaseRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,23 +34,45 @@ public class WebhookService {
     private final RepoRepository repoRepository;
     private final ObjectMapper objectMapper;
     private final SSEController sseController;
+    private final IdempotencyService idempotencyService;
+    private final RepoStateRepository repoStateRepository;
     private static final Logger LOGGER = LoggerFactory.getLogger(WebhookService.class);
 
     @Autowired
     public WebhookService(PullRequestRepository pullRequestRepository,
                           TestCaseRepository testCaseRepository,
                           RepoRepository repoRepository,
-                          ObjectMapper objectMapper, SSEController sseController) {
+                          ObjectMapper objectMapper, SSEController sseController,
+                          IdempotencyService idempotencyService,
+                          RepoStateRepository repoStateRepository) {
         this.pullRequestRepository = pullRequestRepository;
         this.testCaseRepository = testCaseRepository;
         this.repoRepository = repoRepository;
         this.objectMapper = objectMapper;
         this.sseController = sseController;
+        this.idempotencyService = idempotencyService;
+        this.repoStateRepository = repoStateRepository;
     }
 
     @Transactional
     public void handleScanningCallback(String payload) throws JsonProcessingException {
         CallbackDataDTO callbackData = parseCallbackData(payload);
+        String callbackKey = IdempotencyService.scanningCallbackKey(callbackData.getAnalysisId(), callbackData.getStatus());
+        if (!idempotencyService.markFirstSeen(callbackKey)) {
+            LOGGER.info("Ignoring repeated scanning callback for analysis ID: {}, status: {}",
+                    callbackData.getAnalysisId(), callbackData.getStatus());
+            return;
+        }
+
+        try {
+            processScanningCallback(callbackData);
+        } catch (RuntimeException e) {
+            idempotencyService.release(callbackKey);
+            throw e;
+        }
+    }
+
+    private void processScanningCallback(CallbackDataDTO callbackData) {
         LOGGER.info("Processing scanning callback for analysis ID: {}, status: {}",
                 callbackData.getAnalysisId(), callbackData.getStatus());
 
@@ -63,7 +86,6 @@ public class WebhookService {
                 default -> throw new IllegalArgumentException("Unknown status: " + callbackData.getStatus());
             }
 
-            repoRepository.save(repo);
             sendScanUpdateEvent(repo, branchDetails, callbackData);
         } catch (Exception e) {
             LOGGER.error("Error processing callback for repo {}, branch {}: {}",
@@ -85,19 +107,10 @@ public class WebhookService {
     }
 
     private Repo findRepoByAnalysisId(String analysisId) {
-        return repoRepository.findAll().stream()
-                .filter(repo -> isAnalysisIdMatch(repo, analysisId))
-                .findFirst()
+        return repoRepository.findByBranchAnalysisId(analysisId)
                 .orElseThrow(() -> new IllegalStateException("No repository found for analysis ID: " + analysisId));
     }
 
-    private boolean isAnalysisIdMatch(Repo repo, String analysisId) {
-        return (repo.getPrimaryBranchDetails() != null &&
-                analysisId.equals(repo.getPrimaryBranchDetails().getAnalysisId())) ||
-                (repo.getSecondaryBranchDetails() != null &&
-                        analysisId.equals(repo.getSecondaryBranchDetails().getAnalysisId()));
-    }
-
     private BranchDetails findBranchByAnalysisId(Repo repo, String analysisId) {
         if (repo.getPrimaryBranchDetails() != null &&
                 analysisId.equals(repo.getPrimaryBranchDetails().getAnalysisId())) {
@@ -115,13 +128,16 @@ public class WebhookService {
                 repo.getName(), branchDetails.getName());
 
         // Update branch details
+        if (!repoStateRepository.markBranchScanned(branchDetails.getAnalysisId(), callbackData.getKnowledgeGraphRef())) {
+            throw new IllegalStateException("No branch found with analysis ID: " + branchDetails.getAnalysisId());
+        }
         branchDetails.setState(BranchAnalysisState.SCANNED);
         branchDetails.setLastAnalyzed(LocalDateTime.now());
         branchDetails.setKnowledgeGraphRef(callbackData.getKnowledgeGraphRef());
 
-        // Check if all branches are scanned
-        if (isAllBranchesScanned(repo)) {
-            LOGGER.info("All branches scanned for repo: {}. Updating repo state and app summary",
+        // Promote the repo once all branches are scanned, checked against the stored branch states
+        if (repoStateRepository.markScannedIfAllBranchesScanned(repo.getId(), callbackData.getAppSummary())) {
+            LOGGER.info("All branches scanned for repo: {}. Updated repo state and app summary",
                     repo.getName());
             repo.setState(RepoState.SCANNED);
             repo.setAppSummary(callbackData.getAppSummary());
@@ -132,11 +148,10 @@ public class WebhookService {
         LOGGER.error("Processing error status for repo: {}, branch: {}, error: {}",
                 repo.getName(), branchDetails.getName(), errorMessage);
 
+        repoStateRepository.markBranchError(branchDetails.getAnalysisId());
         branchDetails.setState(BranchAnalysisState.ERROR);
         branchDetails.setLastAnalyzed(LocalDateTime.now());
         repo.setState(RepoState.ERROR);
-
-        repoRepository.save(repo);
     }
 
     private void handleErrorStatus(PullRequest pullRequest, PrCallbackDataDTO callbackDataDTO){
@@ -146,17 +161,6 @@ public class WebhookService {
         pullRequestRepository.save(pullRequest);
     }
 
-    private boolean isAllBranchesScanned(Repo repo) {
-        boolean primaryScanned = repo.getPrimaryBranchDetails() != null &&
-                repo.getPrimaryBranchDetails().getState() == BranchAnalysisState.SCANNED;
-
-        if (repo.getSecondaryBranchDetails() == null) {
-            return primaryScanned;
-        }
-
-        return primaryScanned && repo.getSecondaryBranchDetails().getState() == BranchAnalysisState.SCANNED;
-    }
-
     private void sendScanUpdateEvent(Repo repo, BranchDetails branchDetails, CallbackDataDTO callbackData) {
         try {
             Map<String, Object> eventData = new HashMap<>();
@@ -173,7 +177,7 @@ public class WebhookService {
             eventData.put("timestamp", LocalDateTime.now().toString());
 
             String eventDataJson = objectMapper.writeValueAsString(eventData);
-            sseController.sendEvent("repo_update", eventDataJson);
+            sseController.sendEvent("repo_update", eventDataJson, repo);
 
             LOGGER.debug("Sent scan update event for repo: {}, branch: {}",
                     repo.getName(), branchDetails.getName());
@@ -201,6 +205,29 @@ public class WebhookService {
     public void handlePrCallback(String payload) throws JsonProcessingException {
         PrCallbackDataDTO callbackData = parsePrCallbackData(payload);
 
+        // Progress updates legitimately repeat the same status, every other status is delivered once
+        if ("in_progress".equals(callbackData.getStatus())) {
+            processPrCallback(callbackData);
+            return;
+        }
+
+        String callbackKey = IdempotencyService.prCallbackKey(
+                callbackData.getAnalysisId(), callbackData.getPrAnalysisId(), callbackData.getStatus());
+        if (!idempotencyService.markFirstSeen(callbackKey)) {
+            LOGGER.info("Ignoring repeated PR callback for PR analysis ID: {}, status: {}",
+                    callbackData.getPrAnalysisId(), callbackData.getStatus());
+            return;
+        }
+
+        try {
+            processPrCallback(callbackData);
+        } catch (RuntimeException e) {
+            idempotencyService.release(callbackKey);
+            throw e;
+        }
+    }
+
+    private void processPrCallback(PrCallbackDataDTO callbackData) {
         Repo repo = findRepoByAnalysisId(callbackData.getAnalysisId());
 
         PullRequest pullRequest = findPullRequest(callbackData, repo);
@@ -223,7 +250,7 @@ public class WebhookService {
         }
     }
 
-    private PrCallbackDataDTO parsePrCallbackData(String payload) throws JsonProcessingException {
+    PrCallbackDataDTO parsePrCallbackData(String payload) throws JsonProcessingException {
         JsonNode data = objectMapper.readTree(payload);
         return PrCallbackDataDTO.builder()
                 .status(data.path("status").asText())
@@ -361,7 +388,7 @@ public class WebhookService {
             eventData.put("timestamp", LocalDateTime.now().toString());
 
             String eventDataJson = objectMapper.writeValueAsString(eventData);
-            sseController.sendEvent("pr_update", eventDataJson);
+            sseController.sendEvent("pr_update", eventDataJson, pullRequest.getRepo());
 
             LOGGER.debug("Sent PR update event for PR: {}, status: {}",
                     pullRequest.getPullRequestNumber(), callbackData.getStatus());
@@ -410,7 +437,7 @@ public class WebhookService {
             eventData.put("timestamp", LocalDateTime.now().toString());
 
             String eventDataJson = objectMapper.writeValueAsString(eventData);
-            sseController.sendEvent("pr_update", eventDataJson);
+            sseController.sendEvent("pr_update", eventDataJson, pullRequest.getRepo());
         } catch (JsonProcessingException e) {
             LOGGER.error("Error sending PR error event", e);
         }
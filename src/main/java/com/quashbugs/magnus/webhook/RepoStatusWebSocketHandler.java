@@ -1,40 +1,293 @@
 package com.quashbugs.magnus.webhook;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.quashbugs.magnus.model.ClusterEventBatch;
+import com.quashbugs.magnus.model.User;
+import com.quashbugs.magnus.service.ClusterEventBus;
+import com.quashbugs.magnus.service.MembershipService;
+import jakarta.websocket.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.core.Authentication;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.security.Principal;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Pushes repo status updates to WebSocket clients. Clients receive broadcasts and can narrow
+ * further updates to topics ("org:<id>" or "repo:<id>", the same as SSE) by sending
+ * {"action": "subscribe" | "unsubscribe", "topic": "..."}; a topic is only joined if the
+ * authenticated user belongs to its organisation. Each session has its own send queue drained by
+ * at most one worker at a time, so messages arrive in the order they were published. A client
+ * that falls too far behind is closed, and so is one whose send blocks past the send-time limit:
+ * the container gives up on the write after the limit, freeing the worker, and a sweep drops any
+ * session still stuck in a send so nothing more is queued for it.
+ */
 @Component
 public class RepoStatusWebSocketHandler extends TextWebSocketHandler {
 
-    private final List<WebSocketSession> sessions = new ArrayList<>();
+    static final long SEND_TIME_LIMIT_MS = 5000;
+    // Tomcat's timeout for a blocking send, set per session
+    private static final String BLOCKING_SEND_TIMEOUT_PROPERTY = "org.apache.tomcat.websocket.BLOCKING_SEND_TIMEOUT";
+    static final int QUEUE_CAPACITY = 256;
+    private static final int MAX_MESSAGES_PER_DRAIN = 64;
+
+    // session id -> session and its send queue
+    private final Map<String, SessionSender> sessions = new ConcurrentHashMap<>();
+    // topic -> ids of the sessions subscribed to it
+    private final Map<String, Set<String>> topics = new ConcurrentHashMap<>();
+    private final ClusterEventBus clusterEventBus;
+    private final MembershipService membershipService;
+    private final ObjectMapper objectMapper;
+    private final Executor webSocketSendExecutor;
+    private static final Logger LOGGER = LoggerFactory.getLogger(RepoStatusWebSocketHandler.class);
+
+    @Autowired
+    public RepoStatusWebSocketHandler(ClusterEventBus clusterEventBus,
+                                      MembershipService membershipService,
+                                      ObjectMapper objectMapper,
+                                      @Qualifier("webSocketSendExecutor") Executor webSocketSendExecutor) {
+        this.clusterEventBus = clusterEventBus;
+        this.membershipService = membershipService;
+        this.objectMapper = objectMapper;
+        this.webSocketSendExecutor = webSocketSendExecutor;
+        clusterEventBus.register(ClusterEventBus.WEBSOCKET_CHANNEL, message -> {
+            if (message.getTopic() == null) {
+                fanOut(sessions.keySet(), message.getData());
+            } else {
+                fanOut(topics.getOrDefault(message.getTopic(), Set.of()), message.getData());
+            }
+        });
+    }
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) {
-        sessions.add(session); // Store all connected sessions
+        if (session instanceof NativeWebSocketSession nativeSession) {
+            Session standardSession = nativeSession.getNativeSession(Session.class);
+            if (standardSession != null) {
+                standardSession.getUserProperties().put(BLOCKING_SEND_TIMEOUT_PROPERTY, SEND_TIME_LIMIT_MS);
+            }
+        }
+        sessions.put(session.getId(), new SessionSender(session));
     }
 
     @Override
     public void handleTextMessage(WebSocketSession session, TextMessage message) {
-        // Handle incoming messages from the client if needed
+        try {
+            JsonNode request = objectMapper.readTree(message.getPayload());
+            String action = request.path("action").asText();
+            String topic = request.path("topic").asText();
+            if (topic.isBlank()) {
+                return;
+            }
+
+            switch (action) {
+                case "subscribe" -> subscribe(session, topic);
+                case "unsubscribe" -> removeFromTopic(topic, session.getId());
+                default -> LOGGER.debug("Ignoring WebSocket message with action {}", action);
+            }
+        } catch (Exception e) {
+            LOGGER.debug("Ignoring malformed WebSocket message from session {}", session.getId());
+        }
+    }
+
+    private void subscribe(WebSocketSession session, String topic) {
+        if (!canAccess(session.getPrincipal(), topic)) {
+            LOGGER.debug("Session {} is not allowed to subscribe to {}", session.getId(), topic);
+            return;
+        }
+        topics.compute(topic, (key, subscribers) -> {
+            Set<String> updated = subscribers != null ? subscribers : ConcurrentHashMap.newKeySet();
+            updated.add(session.getId());
+            return updated;
+        });
+        // The session may have closed while it was joining
+        if (!sessions.containsKey(session.getId())) {
+            removeFromTopic(topic, session.getId());
+        }
+    }
+
+    private boolean canAccess(Principal principal, String topic) {
+        if (!(principal instanceof Authentication authentication)
+                || !(authentication.getPrincipal() instanceof User user)) {
+            return false;
+        }
+        if (topic.startsWith("org:")) {
+            return membershipService.isMember(user, topic.substring("org:".length()));
+        }
+        if (topic.startsWith("repo:")) {
+            return membershipService.canAccessRepo(user, topic.substring("repo:".length()));
+        }
+        return false;
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
-        sessions.remove(session); // Remove session when closed
+        removeSession(session.getId());
+    }
+
+    // Method to send updates to all clients, on this node and on the rest of the cluster
+    public void sendMessageToClients(String message) {
+        clusterEventBus.publish(new ClusterEventBatch.Message(
+                ClusterEventBus.WEBSOCKET_CHANNEL, 0, null, message, null, null, null));
+        fanOut(sessions.keySet(), message);
     }
 
-    // Method to send updates to all clients
-    public void sendMessageToClients(String message) throws IOException {
-        for (WebSocketSession session : sessions) {
-            session.sendMessage(new TextMessage(message));
+    public void sendMessageToTopic(String topic, String message) {
+        clusterEventBus.publish(new ClusterEventBatch.Message(
+                ClusterEventBus.WEBSOCKET_CHANNEL, 0, null, message, null, null, topic));
+        fanOut(topics.getOrDefault(topic, Set.of()), message);
+    }
+
+    /**
+     * Closes sessions whose current send has been running for longer than the send-time limit, in
+     * case the container does not time the write out itself.
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void closeStalledSessions() {
+        long startedBefore = System.currentTimeMillis() - SEND_TIME_LIMIT_MS;
+        sessions.values().forEach(sender -> {
+            if (sender.isSendingSince(startedBefore)) {
+                LOGGER.warn("Closing WebSocket session {} whose send took over {} ms",
+                        sender.session.getId(), SEND_TIME_LIMIT_MS);
+                sender.close();
+            }
+        });
+    }
+
+    private void fanOut(Collection<String> sessionIds, String message) {
+        TextMessage textMessage = new TextMessage(message);
+        for (String sessionId : sessionIds) {
+            SessionSender sender = sessions.get(sessionId);
+            if (sender != null) {
+                sender.enqueue(textMessage);
+            }
         }
     }
-}
 
+    private void removeSession(String sessionId) {
+        sessions.remove(sessionId);
+        topics.keySet().forEach(topic -> removeFromTopic(topic, sessionId));
+    }
+
+    private void removeFromTopic(String topic, String sessionId) {
+        topics.computeIfPresent(topic, (key, subscribers) -> {
+            subscribers.remove(sessionId);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+    }
+
+    /**
+     * One session's pending messages, sent in order by at most one drain at a time. A session that
+     * falls {@link #QUEUE_CAPACITY} messages behind, or whose send fails, is closed and forgotten.
+     */
+    private class SessionSender {
+
+        private final WebSocketSession session;
+        private final ArrayDeque<TextMessage> queue = new ArrayDeque<>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        // When the send in progress started, 0 between sends
+        private volatile long sendStartedAt;
+
+        SessionSender(WebSocketSession session) {
+            this.session = session;
+        }
+
+        void enqueue(TextMessage message) {
+            if (!session.isOpen()) {
+                return;
+            }
+            boolean overflow;
+            synchronized (queue) {
+                overflow = queue.size() >= QUEUE_CAPACITY;
+                if (!overflow) {
+                    queue.add(message);
+                }
+            }
+
+            if (overflow) {
+                LOGGER.warn("Closing WebSocket session {} that fell {} messages behind",
+                        session.getId(), QUEUE_CAPACITY);
+                close();
+                return;
+            }
+            scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            if (!draining.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                webSocketSendExecutor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // Messages stay queued and the next enqueue schedules the drain again
+                draining.set(false);
+                LOGGER.warn("WebSocket send executor is full, delaying messages for session {}", session.getId());
+            }
+        }
+
+        private void drain() {
+            for (int sent = 0; sent < MAX_MESSAGES_PER_DRAIN; sent++) {
+                TextMessage message;
+                synchronized (queue) {
+                    message = queue.poll();
+                    if (message == null) {
+                        draining.set(false);
+                        return;
+                    }
+                }
+
+                sendStartedAt = System.currentTimeMillis();
+                try {
+                    session.sendMessage(message);
+                } catch (Exception e) {
+                    sendStartedAt = 0;
+                    LOGGER.debug("Closing WebSocket session {} after failed send: {}", session.getId(), e.getMessage());
+                    close();
+                    draining.set(false);
+                    return;
+                }
+                sendStartedAt = 0;
+            }
+
+            // Yield the worker to other sessions, then carry on with what is left
+            draining.set(false);
+            scheduleDrain();
+        }
+
+        boolean isSendingSince(long startedBefore) {
+            long startedAt = sendStartedAt;
+            return startedAt != 0 && startedAt < startedBefore;
+        }
+
+        private void close() {
+            removeSession(session.getId());
+            synchronized (queue) {
+                queue.clear();
+            }
+            try {
+                session.close(CloseStatus.SESSION_NOT_RELIABLE);
+            } catch (Exception ignored) {
+                // already closed
+            }
+        }
+    }
+}
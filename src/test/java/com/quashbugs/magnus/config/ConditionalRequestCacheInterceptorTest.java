@@ -0,0 +1,75 @@
+package com.quashbugs.magnus.config;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConditionalRequestCacheInterceptorTest {
+
+    private static final URI BRANCH = URI.create("https://api.github.com/repos/acme/app/branches/main");
+    private static final URI TREE = URI.create(
+            "https://api.github.com/repos/acme/app/git/trees/0123456789abcdef0123456789abcdef01234567");
+
+    private final ConditionalRequestCacheInterceptor interceptor =
+            new ConditionalRequestCacheInterceptor(8 * 1024, new SimpleMeterRegistry());
+    private final List<HttpHeaders> sentHeaders = new ArrayList<>();
+
+    @Test
+    void smallResponseIsRevalidatedAndServedFromCache() throws Exception {
+        byte[] body = "{\"name\":\"main\"}".getBytes();
+        interceptor.intercept(new MockClientHttpRequest(HttpMethod.GET, BRANCH), new byte[0], respond(HttpStatus.OK, body, true));
+
+        ClientHttpResponse cached = interceptor.intercept(new MockClientHttpRequest(HttpMethod.GET, BRANCH), new byte[0],
+                respond(HttpStatus.NOT_MODIFIED, new byte[0], true));
+
+        assertThat(sentHeaders.get(1).getFirst(HttpHeaders.IF_NONE_MATCH)).isEqualTo("\"v1\"");
+        assertThat(cached.getBody().readAllBytes()).isEqualTo(body);
+    }
+
+    @Test
+    void bodyOverEntryLimitWithoutLengthIsStreamedThroughWhole() throws Exception {
+        byte[] body = new byte[5000];
+        Arrays.fill(body, (byte) 'x');
+        ClientHttpResponse response = interceptor.intercept(new MockClientHttpRequest(HttpMethod.GET, BRANCH), new byte[0],
+                respond(HttpStatus.OK, body, false));
+
+        assertThat(response.getBody().readAllBytes()).isEqualTo(body);
+
+        interceptor.intercept(new MockClientHttpRequest(HttpMethod.GET, BRANCH), new byte[0], respond(HttpStatus.OK, body, false));
+        assertThat(sentHeaders.get(1).containsKey(HttpHeaders.IF_NONE_MATCH)).isFalse();
+    }
+
+    @Test
+    void treeByShaIsNeverCached() throws Exception {
+        byte[] body = "{\"tree\":[]}".getBytes();
+        interceptor.intercept(new MockClientHttpRequest(HttpMethod.GET, TREE), new byte[0], respond(HttpStatus.OK, body, true));
+        interceptor.intercept(new MockClientHttpRequest(HttpMethod.GET, TREE), new byte[0], respond(HttpStatus.OK, body, true));
+
+        assertThat(sentHeaders.get(1).containsKey(HttpHeaders.IF_NONE_MATCH)).isFalse();
+    }
+
+    private ClientHttpRequestExecution respond(HttpStatus status, byte[] body, boolean withLength) {
+        return (request, requestBody) -> {
+            sentHeaders.add(HttpHeaders.readOnlyHttpHeaders(request.getHeaders()));
+            MockClientHttpResponse response = new MockClientHttpResponse(body, status);
+            response.getHeaders().setETag("\"v1\"");
+            if (withLength) {
+                response.getHeaders().setContentLength(body.length);
+            }
+            return response;
+        };
+    }
+}
@@ -0,0 +1,132 @@
+package com.quashbugs.magnus.config;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Feeds the governor provider responses at a fixed clock and checks the pauses and waits it hands
+ * out. The clock sits on a whole second so HTTP dates round-trip exactly.
+ */
+class RateLimitGovernorTest {
+
+    private static final String BUDGET = "api.github.com/abc";
+    private static final long NOW = 1_717_000_000_000L;
+
+    private final RateLimitGovernor governor = new RateLimitGovernor(new SimpleMeterRegistry());
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(governor, "backgroundReserve", 0.1);
+        ReflectionTestUtils.setField(governor, "paceBelow", 0.5);
+    }
+
+    @Test
+    void githubExhaustedLimitPausesUntilEpochReset() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("X-RateLimit-Limit", "5000");
+        headers.set("X-RateLimit-Remaining", "0");
+        headers.set("X-RateLimit-Reset", String.valueOf(NOW / 1000 + 120));
+
+        assertThat(governor.record(BUDGET, HttpStatus.FORBIDDEN, headers, NOW)).isEqualTo(120_000);
+        assertThat(governor.reserve(BUDGET, false, NOW + 1_000)).isEqualTo(119_000);
+        assertThat(governor.reserve(BUDGET, false, NOW + 120_000)).isZero();
+    }
+
+    @Test
+    void gitlabResetBelowEpochThresholdIsSecondsFromNow() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("RateLimit-Limit", "2000");
+        headers.set("RateLimit-Remaining", "0");
+        headers.set("RateLimit-Reset", "30");
+
+        assertThat(governor.record(BUDGET, HttpStatus.TOO_MANY_REQUESTS, headers, NOW)).isEqualTo(30_000);
+    }
+
+    @Test
+    void retryAfterIsReadAsSecondsOrHttpDate() {
+        HttpHeaders seconds = new HttpHeaders();
+        seconds.set(HttpHeaders.RETRY_AFTER, "5");
+        assertThat(governor.record("api.bitbucket.org/a", HttpStatus.TOO_MANY_REQUESTS, seconds, NOW)).isEqualTo(5_000);
+
+        HttpHeaders date = new HttpHeaders();
+        date.set(HttpHeaders.RETRY_AFTER, DateTimeFormatter.RFC_1123_DATE_TIME
+                .format(Instant.ofEpochMilli(NOW + 60_000).atZone(ZoneOffset.UTC)));
+        assertThat(governor.record("api.bitbucket.org/b", HttpStatus.TOO_MANY_REQUESTS, date, NOW)).isEqualTo(60_000);
+    }
+
+    @Test
+    void forbiddenIsOnlyRateLimitedWithExhaustedBudgetOrRetryAfter() {
+        HttpHeaders permissions = new HttpHeaders();
+        permissions.set("X-RateLimit-Remaining", "4000");
+        assertThat(governor.record(BUDGET, HttpStatus.FORBIDDEN, permissions, NOW)).isEqualTo(-1);
+        assertThat(governor.reserve(BUDGET, false, NOW)).isZero();
+
+        HttpHeaders secondaryLimit = new HttpHeaders();
+        secondaryLimit.set("X-RateLimit-Remaining", "4000");
+        secondaryLimit.set(HttpHeaders.RETRY_AFTER, "60");
+        assertThat(governor.record(BUDGET, HttpStatus.FORBIDDEN, secondaryLimit, NOW)).isEqualTo(60_000);
+
+        // A 429 is limited even without any headers
+        assertThat(governor.record("api.bitbucket.org/a", HttpStatus.TOO_MANY_REQUESTS, new HttpHeaders(), NOW))
+                .isEqualTo(60_000);
+    }
+
+    @Test
+    void backgroundStopsAtReserveWhileInteractiveContinues() {
+        governor.record(BUDGET, HttpStatus.OK, budget(100, 10, 60), NOW);
+
+        assertThat(governor.reserve(BUDGET, true, NOW)).isEqualTo(60_000);
+        assertThat(governor.reserve(BUDGET, false, NOW)).isZero();
+    }
+
+    @Test
+    void backgroundIsPacedOverWindowBelowHalfBudget() {
+        governor.record(BUDGET, HttpStatus.OK, budget(100, 40, 60), NOW);
+
+        // 30 calls above the reserve of 10 are spread over the 60 s left
+        assertThat(governor.reserve(BUDGET, true, NOW)).isZero();
+        assertThat(governor.reserve(BUDGET, true, NOW)).isEqualTo(2_000);
+        assertThat(governor.reserve(BUDGET, false, NOW)).isZero();
+        assertThat(governor.reserve(BUDGET, true, NOW + 2_000)).isZero();
+    }
+
+    @Test
+    void backgroundIsNotPacedAboveHalfBudget() {
+        governor.record(BUDGET, HttpStatus.OK, budget(100, 60, 60), NOW);
+
+        assertThat(governor.reserve(BUDGET, true, NOW)).isZero();
+        assertThat(governor.reserve(BUDGET, true, NOW)).isZero();
+    }
+
+    @Test
+    void pooledTaskTakesPriorityOfItsSubmitter() {
+        boolean[] background = new boolean[2];
+        Runnable interactive = RateLimitGovernor.withCallerPriority(() -> background[0] = RateLimitGovernor.isBackground());
+        Runnable[] detection = new Runnable[1];
+        RateLimitGovernor.runAsBackground(() -> detection[0] =
+                RateLimitGovernor.withCallerPriority(() -> background[1] = RateLimitGovernor.isBackground()));
+
+        interactive.run();
+        detection[0].run();
+
+        assertThat(background).containsExactly(false, true);
+    }
+
+    private static HttpHeaders budget(int limit, int remaining, long resetInSeconds) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("X-RateLimit-Limit", String.valueOf(limit));
+        headers.set("X-RateLimit-Remaining", String.valueOf(remaining));
+        headers.set("X-RateLimit-Reset", String.valueOf(NOW / 1000 + resetInSeconds));
+        return headers;
+    }
+}
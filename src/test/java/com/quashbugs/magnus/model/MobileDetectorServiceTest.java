@@ -0,0 +1,156 @@
+package com.quashbugs.magnus.model;
+
+import com.quashbugs.magnus.dto.MobileProjectInfoDTO;
+import com.quashbugs.magnus.dto.PlatformScoreDTO;
+import com.quashbugs.magnus.dto.RepoFile;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MobileDetectorServiceTest {
+
+    // Paths that hit every rule of every platform, plus some that hit none
+    private static final String[] PATHS = {
+            "app/src/main/AndroidManifest.xml", "app/src/main/java/com/acme/Main.java",
+            "app/src/main/kotlin/com/acme/Main.kt", "build.gradle", "app/build.gradle.kts", "gradlew", "gradlew.bat",
+            "app/src/main/res/values/strings.xml", "app/res/layout/main.xml", "a/One.java", "a/Two.kt", "a/Three.kt",
+            "a/Four.java", "a/Five.java", "a/Six.kt", "pubspec.yaml", "app/lib/main.dart", "Runner.xcodeproj",
+            "Runner.xcworkspace", "ios/Runner/Info.plist", "ios/Runner/AppDelegate.swift", "App.swift", "Package.swift",
+            "ios/Views/Home.swift", "ios/Models/User.swift", "ios/ViewModels/Vm.swift", "s/a.swift", "s/b.swift",
+            "s/c.swift", "s/d.swift", "Main.storyboard", "Cell.xib", "package.json", "App.js", "App.tsx",
+            "android/app/build.gradle", "ios/Podfile", "src/one.js", "src/two.js", "src/three.tsx", "src/four.tsx",
+            "src/five.js", "src/components/Button.tsx", "src/screens/Home.tsx", "android/flutter.gradle",
+            "d/a.dart", "d/b.dart", "d/c.dart", "d/d.dart", "d/e.dart", "d/f.dart", "app/lib/widgets/w.dart",
+            "app/lib/screens/s.dart", "app/test/widget_test.dart", ".metadata", "analysis_options.yaml",
+            "README.md", "docs/index.html", "src/main.py", "Makefile", ".gitignore", "lib/main.dart", "test/x.txt"
+    };
+
+    private final MobileDetectorService detector = new MobileDetectorService();
+
+    @Test
+    void matchesPreviousImplementationOnRandomTrees() {
+        Random random = new Random(20240604L);
+        for (int i = 0; i < 20_000; i++) {
+            List<RepoFile> files = randomTree(random);
+            assertThat(detector.analyzeMobileProject(files))
+                    .as("tree %s", files)
+                    .isEqualTo(LegacyMobileDetector.analyzeMobileProject(files));
+        }
+    }
+
+    @Test
+    void classifiesTypicalProjects() {
+        assertThat(detector.analyzeMobileProject(tree(
+                "app/src/main/AndroidManifest.xml", "app/src/main/java/com/acme/Main.java", "build.gradle", "gradlew")))
+                .isEqualTo(new MobileProjectInfoDTO(true, "Android"));
+        assertThat(detector.analyzeMobileProject(tree(
+                "pubspec.yaml", "app/lib/main.dart", "android/app/build.gradle", "ios/Podfile")))
+                .isEqualTo(new MobileProjectInfoDTO(true, "Flutter"));
+        assertThat(detector.analyzeMobileProject(tree(
+                "Runner.xcodeproj", "ios/Runner/Info.plist", "ios/Runner/AppDelegate.swift")))
+                .isEqualTo(new MobileProjectInfoDTO(true, "iOS"));
+        assertThat(detector.analyzeMobileProject(tree(
+                "package.json", "App.tsx", "android/app/build.gradle", "ios/Podfile")))
+                .isEqualTo(new MobileProjectInfoDTO(true, "React Native"));
+        assertThat(detector.analyzeMobileProject(tree("README.md", "src/main.py", "Makefile")))
+                .isEqualTo(new MobileProjectInfoDTO(false, ""));
+        assertThat(detector.analyzeMobileProject(List.of()))
+                .isEqualTo(new MobileProjectInfoDTO(false, ""));
+    }
+
+    private static List<RepoFile> randomTree(Random random) {
+        List<RepoFile> files = new ArrayList<>();
+        int size = random.nextInt(30);
+        for (int i = 0; i < size; i++) {
+            // Duplicates are kept on purpose: the old implementation counted them twice
+            files.add(file(PATHS[random.nextInt(PATHS.length)]));
+        }
+        return files;
+    }
+
+    private static List<RepoFile> tree(String... paths) {
+        return Stream.of(paths).map(MobileDetectorServiceTest::file).toList();
+    }
+
+    private static RepoFile file(String path) {
+        return new RepoFile(path.substring(path.lastIndexOf('/') + 1), path, "file");
+    }
+
+    /**
+     * The detector as it was before the rules were compiled into a single pass; the reference the
+     * compiled rules must agree with.
+     */
+    private static final class LegacyMobileDetector {
+
+        static MobileProjectInfoDTO analyzeMobileProject(List<RepoFile> files) {
+            PlatformScoreDTO maxScore = Stream.of(android(files), iOS(files), reactNative(files), flutter(files))
+                    .max(PlatformScoreDTO::compareTo)
+                    .orElse(new PlatformScoreDTO("Unknown", 0));
+            boolean isMobile = maxScore.getScore() > 60;
+            return new MobileProjectInfoDTO(isMobile, isMobile ? maxScore.getPlatform() : "");
+        }
+
+        private static PlatformScoreDTO android(List<RepoFile> files) {
+            int score = 0;
+            score += any(files, f -> f.getName().equals("AndroidManifest.xml"), 40);
+            score += any(files, f -> f.getPath().contains("/src/main/java/") || f.getPath().contains("/src/main/kotlin/"), 30);
+            score += any(files, f -> f.getName().equals("build.gradle") || f.getName().equals("build.gradle.kts"), 20);
+            score += any(files, f -> f.getName().equals("gradlew") || f.getName().equals("gradlew.bat"), 10);
+            score += any(files, f -> f.getPath().contains("/src/main/res/"), 20);
+            score += count(files, f -> f.getName().endsWith(".java") || f.getName().endsWith(".kt"), 15, 5);
+            score += any(files, f -> f.getPath().contains("/res/layout/") && f.getName().endsWith(".xml"), 15);
+            score -= any(files, f -> f.getName().equals("pubspec.yaml") || f.getPath().contains("/lib/main.dart"), 50);
+            return new PlatformScoreDTO("Android", Math.max(score, 0));
+        }
+
+        private static PlatformScoreDTO iOS(List<RepoFile> files) {
+            int score = 0;
+            score += any(files, f -> f.getName().endsWith(".xcodeproj") || f.getName().endsWith(".xcworkspace"), 30);
+            score += any(files, f -> f.getName().equals("Info.plist"), 20);
+            score += any(files, f -> f.getName().equals("AppDelegate.swift") || f.getName().equals("App.swift"), 20);
+            score += any(files, f -> f.getName().equals("Package.swift"), 20);
+            score += any(files, f -> f.getPath().contains("/Views/") || f.getPath().contains("/Models/") || f.getPath().contains("/ViewModels/"), 15);
+            score += count(files, f -> f.getName().endsWith(".swift"), 15, 5);
+            score += any(files, f -> f.getName().endsWith(".storyboard") || f.getName().endsWith(".xib"), 10);
+            return new PlatformScoreDTO("iOS", score);
+        }
+
+        private static PlatformScoreDTO reactNative(List<RepoFile> files) {
+            int score = 0;
+            score += any(files, f -> f.getName().equals("package.json"), 20);
+            score += any(files, f -> f.getName().equals("App.js") || f.getName().equals("App.tsx"), 20);
+            score += any(files, f -> f.getPath().startsWith("android/") && files.stream().anyMatch(i -> i.getPath().startsWith("ios/")), 30);
+            score += count(files, f -> f.getName().endsWith(".js") || f.getName().endsWith(".tsx"), 15, 5);
+            score += any(files, f -> f.getPath().contains("/components/") || f.getPath().contains("/screens/"), 15);
+            return new PlatformScoreDTO("React Native", score);
+        }
+
+        private static PlatformScoreDTO flutter(List<RepoFile> files) {
+            int score = 0;
+            score += any(files, f -> f.getName().equals("pubspec.yaml"), 40);
+            score += any(files, f -> f.getPath().contains("/lib/main.dart"), 40);
+            score += any(files, f -> f.getName().equals("flutter.gradle"), 30);
+            score += count(files, f -> f.getName().endsWith(".dart"), 20, 5);
+            score += any(files, f -> f.getPath().contains("/lib/widgets/") || f.getPath().contains("/lib/screens/"), 20);
+            score += any(files, f -> f.getPath().contains("/test/"), 10);
+            score += any(files, f -> f.getName().equals(".metadata"), 10);
+            score += any(files, f -> f.getName().equals("analysis_options.yaml"), 10);
+            score += any(files, f -> f.getPath().startsWith("android/") && files.stream().anyMatch(i -> i.getPath().startsWith("ios/")), 20);
+            return new PlatformScoreDTO("Flutter", score);
+        }
+
+        private static int any(List<RepoFile> files, Predicate<RepoFile> predicate, int score) {
+            return files.stream().anyMatch(predicate) ? score : 0;
+        }
+
+        private static int count(List<RepoFile> files, Predicate<RepoFile> predicate, int score, int threshold) {
+            return files.stream().filter(predicate).count() > threshold ? score : 0;
+        }
+    }
+}
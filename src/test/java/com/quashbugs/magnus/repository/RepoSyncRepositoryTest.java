@@ -0,0 +1,238 @@
+package com.quashbugs.magnus.repository;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import com.quashbugs.magnus.model.DetectionJob;
+import com.quashbugs.magnus.model.GithubOrganisation;
+import com.quashbugs.magnus.model.Organisation;
+import com.quashbugs.magnus.model.Repo;
+import com.quashbugs.magnus.model.RepoState;
+import com.quashbugs.magnus.service.RepoStateIndex;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs syncs against the repos of one organisation that the mocked MongoTemplate keeps in memory,
+ * keyed by name, together with the repos whose detection job is running.
+ */
+class RepoSyncRepositoryTest {
+
+    private static final LocalDateTime CREATED_AT = LocalDateTime.of(2024, 1, 1, 0, 0);
+
+    private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+    private final RepoStateIndex repoStateIndex = mock(RepoStateIndex.class);
+    private final RepoSyncRepository repository = new RepoSyncRepository(mongoTemplate, repoStateIndex);
+    private final Organisation organisation = GithubOrganisation.builder().id("org-1").name("acme").build();
+    private final Map<String, Repo> stored = new LinkedHashMap<>();
+    private final Set<String> detecting = new HashSet<>();
+    private long counter;
+
+    @BeforeEach
+    void setUp() {
+        when(repoStateIndex.allocateVersions(anyInt())).thenAnswer(invocation -> {
+            long first = counter + 1;
+            counter += (int) invocation.getArgument(0);
+            return first;
+        });
+        when(mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Repo.class)).thenAnswer(invocation -> bulk());
+        when(mongoTemplate.find(any(Query.class), eq(Repo.class))).thenAnswer(invocation -> {
+            Document query = ((Query) invocation.getArgument(0)).getQueryObject();
+            Predicate<String> name = inOrNotIn((Document) query.get("name"));
+            return stored.values().stream().filter(repo -> name.test(repo.getName())).map(RepoSyncRepositoryTest::copy).toList();
+        });
+        when(mongoTemplate.find(any(Query.class), eq(DetectionJob.class))).thenAnswer(invocation ->
+                detecting.stream().map(repoId -> DetectionJob.builder().repoId(repoId).build()).toList());
+        when(mongoTemplate.updateMulti(any(Query.class), any(Update.class), eq(Repo.class))).thenAnswer(invocation -> {
+            Document query = ((Query) invocation.getArgument(0)).getQueryObject();
+            Predicate<String> id = inOrNotIn((Document) query.get("_id"));
+            Document stateCondition = (Document) query.get("state");
+            Collection<?> settled = (Collection<?>) stateCondition.get("$nin");
+            RepoState state = (RepoState) ((Document) ((Update) invocation.getArgument(1)).getUpdateObject().get("$set")).get("state");
+            long modified = 0;
+            for (Repo repo : stored.values()) {
+                if (id.test(repo.getId()) && !settled.contains(repo.getState()) && repo.getState() != state) {
+                    repo.setState(state);
+                    modified++;
+                }
+            }
+            return UpdateResult.acknowledged(modified, modified, null);
+        });
+        when(mongoTemplate.remove(any(Query.class), eq(Repo.class))).thenAnswer(invocation -> {
+            Document query = ((Query) invocation.getArgument(0)).getQueryObject();
+            Predicate<String> id = inOrNotIn((Document) query.get("_id"));
+            long removed = stored.values().stream().filter(repo -> id.test(repo.getId())).count();
+            stored.values().removeIf(repo -> id.test(repo.getId()));
+            return DeleteResult.acknowledged(removed);
+        });
+    }
+
+    @Test
+    void newRepoIsInsertedFetching() {
+        RepoSyncRepository.UpsertResult result = repository.upsertAll(organisation, List.of(incoming("app", "Kotlin")));
+
+        assertThat(result.inserted()).isEqualTo(1);
+        assertThat(result.updated()).isZero();
+        assertThat(result.repos()).singleElement().satisfies(repo -> {
+            assertThat(repo.getState()).isEqualTo(RepoState.FETCHING);
+            assertThat(repo.getStateVersion()).isEqualTo(1);
+            assertThat(repo.getOrganisation()).isSameAs(organisation);
+        });
+    }
+
+    @Test
+    void onlyReposWithChangedInfoCountAsUpdated() {
+        store("app", "Kotlin", RepoState.COMPATIBLE);
+        store("web", "TypeScript", RepoState.INCOMPATIBLE);
+
+        RepoSyncRepository.UpsertResult result = repository.upsertAll(organisation,
+                List.of(incoming("app", "Kotlin"), incoming("web", "JavaScript")));
+
+        assertThat(result.inserted()).isZero();
+        assertThat(result.updated()).isEqualTo(1);
+    }
+
+    @Test
+    void settledReposKeepTheirStateOthersAreFetchedAgain() {
+        store("app", "Kotlin", RepoState.COMPATIBLE);
+        store("web", "TypeScript", RepoState.ANALYZING);
+        store("lib", "Java", RepoState.ERROR);
+
+        repository.upsertAll(organisation,
+                List.of(incoming("app", "Kotlin"), incoming("web", "TypeScript"), incoming("lib", "Java")));
+
+        assertThat(stored.get("app").getState()).isEqualTo(RepoState.COMPATIBLE);
+        assertThat(stored.get("web").getState()).isEqualTo(RepoState.ANALYZING);
+        assertThat(stored.get("lib").getState()).isEqualTo(RepoState.FETCHING);
+    }
+
+    @Test
+    void repoWithRunningDetectionKeepsItsState() {
+        store("app", "Kotlin", RepoState.SCANNING);
+        store("lib", "Java", RepoState.SCANNING);
+        detecting.add(stored.get("app").getId());
+
+        repository.upsertAll(organisation, List.of(incoming("app", "Kotlin"), incoming("lib", "Java")));
+
+        assertThat(stored.get("app").getState()).isEqualTo(RepoState.SCANNING);
+        assertThat(stored.get("lib").getState()).isEqualTo(RepoState.FETCHING);
+    }
+
+    @Test
+    void staleReposAreRemovedFromStoreAndIndex() {
+        store("app", "Kotlin", RepoState.COMPATIBLE);
+        store("old", "Java", RepoState.INCOMPATIBLE);
+
+        assertThat(repository.removeAllExcept(organisation, List.of("app"))).isEqualTo(1);
+
+        assertThat(stored).containsOnlyKeys("app");
+        verify(repoStateIndex).remove(List.of("id-old"));
+    }
+
+    // Applies the recorded upserts and version updates when executed, like an unordered bulk write
+    private BulkOperations bulk() {
+        BulkOperations bulk = mock(BulkOperations.class);
+        List<Object[]> upserts = new ArrayList<>();
+        List<Object[]> updates = new ArrayList<>();
+        when(bulk.upsert(any(Query.class), any(Update.class))).thenAnswer(invocation -> {
+            upserts.add(invocation.getArguments());
+            return bulk;
+        });
+        when(bulk.updateOne(any(Query.class), any(Update.class))).thenAnswer(invocation -> {
+            updates.add(invocation.getArguments());
+            return bulk;
+        });
+        when(bulk.execute()).thenAnswer(invocation -> {
+            List<BulkWriteUpsert> inserted = new ArrayList<>();
+            int matched = 0;
+            int modified = 0;
+            for (int i = 0; i < upserts.size(); i++) {
+                String name = (String) ((Query) upserts.get(i)[0]).getQueryObject().get("name");
+                Document update = ((Update) upserts.get(i)[1]).getUpdateObject();
+                Document set = (Document) update.get("$set");
+                Repo repo = stored.get(name);
+                if (repo == null) {
+                    repo = Repo.builder().id("id-" + name).name(name)
+                            .state((RepoState) ((Document) update.get("$setOnInsert")).get("state")).build();
+                    stored.put(name, repo);
+                    inserted.add(new BulkWriteUpsert(i, new BsonString(repo.getId())));
+                } else {
+                    matched++;
+                    if (!Objects.equals(repo.getLanguage(), set.get("language"))
+                            || !Objects.equals(repo.getCreatedAt(), set.get("createdAt"))
+                            || repo.isPrivate() != (Boolean) set.get("isPrivate")) {
+                        modified++;
+                    }
+                }
+                repo.setLanguage((String) set.get("language"));
+                repo.setCreatedAt((LocalDateTime) set.get("createdAt"));
+                repo.setPrivate((Boolean) set.get("isPrivate"));
+            }
+            for (Object[] update : updates) {
+                String name = (String) ((Query) update[0]).getQueryObject().get("name");
+                long version = (Long) ((Document) ((Update) update[1]).getUpdateObject().get("$set")).get("stateVersion");
+                Repo repo = stored.get(name);
+                if (repo.getStateVersion() < version) {
+                    repo.setStateVersion(version);
+                }
+            }
+            return BulkWriteResult.acknowledged(0, matched, 0, modified, inserted);
+        });
+        return bulk;
+    }
+
+    private void store(String name, String language, RepoState state) {
+        Repo repo = incoming(name, language);
+        repo.setId("id-" + name);
+        repo.setState(state);
+        stored.put(name, repo);
+    }
+
+    private static Repo incoming(String name, String language) {
+        return Repo.builder().name(name).language(language).createdAt(CREATED_AT).build();
+    }
+
+    private static Predicate<String> inOrNotIn(Document condition) {
+        Collection<?> in = (Collection<?>) condition.get("$in");
+        Collection<?> notIn = (Collection<?>) condition.get("$nin");
+        return value -> (in == null || in.contains(value)) && (notIn == null || !notIn.contains(value));
+    }
+
+    private static Repo copy(Repo repo) {
+        return Repo.builder()
+                .id(repo.getId())
+                .name(repo.getName())
+                .isPrivate(repo.isPrivate())
+                .language(repo.getLanguage())
+                .createdAt(repo.getCreatedAt())
+                .state(repo.getState())
+                .stateVersion(repo.getStateVersion())
+                .build();
+    }
+}
@@ -0,0 +1,109 @@
+package com.quashbugs.magnus.service;
+
+import com.mongodb.client.result.UpdateResult;
+import com.quashbugs.magnus.model.ClusterEventBatch;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Drives the bus by hand: the flusher is a mock, so batches are only written when a test calls
+ * {@code flush()}, and what the mocked MongoTemplate was asked to store is recorded.
+ */
+class ClusterEventBusTest {
+
+    private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+    private final ClusterEventBus bus = new ClusterEventBus(mongoTemplate);
+    private final List<List<Long>> inserted = new ArrayList<>();
+    private int failuresLeft;
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(bus, "enabled", true);
+        ReflectionTestUtils.setField(bus, "batchSize", 2);
+        ReflectionTestUtils.setField(bus, "maxPending", 4);
+        ReflectionTestUtils.setField(bus, "flusher", mock(ScheduledExecutorService.class));
+        when(mongoTemplate.upsert(any(Query.class), any(Update.class), eq(ClusterEventBatch.class))).thenAnswer(invocation -> {
+            if (failuresLeft > 0) {
+                failuresLeft--;
+                throw new DataAccessResourceFailureException("no primary");
+            }
+            Document set = (Document) ((Update) invocation.getArgument(1)).getUpdateObject().get("$set");
+            List<Long> ids = new ArrayList<>();
+            for (Object message : (List<?>) set.get("messages")) {
+                ids.add(((ClusterEventBatch.Message) message).getEventId());
+            }
+            inserted.add(ids);
+            return UpdateResult.acknowledged(0, 0L, null);
+        });
+    }
+
+    @Test
+    void messagesAreWrittenInBatchesOfBatchSize() {
+        for (long id = 1; id <= 3; id++) {
+            bus.publish(message(id));
+        }
+
+        bus.flush();
+
+        assertThat(inserted).containsExactly(List.of(1L, 2L), List.of(3L));
+    }
+
+    @Test
+    void failedBatchIsRetriedFirstAndPendingLimitHolds() {
+        bus.publish(message(1));
+        bus.publish(message(2));
+        bus.publish(message(3));
+        failuresLeft = 1;
+
+        bus.flush();
+        assertThat(inserted).isEmpty();
+        // Three are still waiting, so only one more fits under the limit
+        bus.publish(message(4));
+        bus.publish(message(5));
+
+        bus.flush();
+        assertThat(inserted).containsExactly(List.of(1L, 2L), List.of(3L, 4L));
+    }
+
+    @Test
+    void batchesOfThisNodeAreNotDelivered() {
+        List<ClusterEventBatch.Message> received = new ArrayList<>();
+        bus.register(ClusterEventBus.SSE_CHANNEL, received::add);
+        String nodeId = (String) ReflectionTestUtils.getField(bus, "nodeId");
+
+        bus.deliver(batch(nodeId, message(1)));
+        bus.deliver(batch("node-2", message(2)));
+
+        assertThat(received).singleElement().satisfies(message -> {
+            assertThat(message.getEventId()).isEqualTo(2);
+            assertThat(message.getOrigin()).isEqualTo("node-2");
+        });
+        Document filter = bus.tailFilter(Instant.EPOCH).getQueryObject();
+        assertThat(filter.get("origin")).isEqualTo(new Document("$ne", nodeId));
+    }
+
+    private static ClusterEventBatch batch(String origin, ClusterEventBatch.Message message) {
+        return ClusterEventBatch.builder().origin(origin).messages(List.of(message)).build();
+    }
+
+    private static ClusterEventBatch.Message message(long eventId) {
+        return new ClusterEventBatch.Message(ClusterEventBus.SSE_CHANNEL, eventId, "REPO_UPDATE", "{}", "repo-1", "org-1", null);
+    }
+}
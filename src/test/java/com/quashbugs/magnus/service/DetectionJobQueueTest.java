@@ -0,0 +1,154 @@
+package com.quashbugs.magnus.service;
+
+import com.mongodb.client.result.UpdateResult;
+import com.quashbugs.magnus.config.ExecutorRegistry;
+import com.quashbugs.magnus.model.DetectionJob;
+import com.quashbugs.magnus.model.DetectionJobState;
+import com.quashbugs.magnus.repository.RepoStateRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs the queue against a single in-memory job that the mocked MongoTemplate reads and writes,
+ * to check how a job reacts to the repo being queued again while it runs.
+ */
+class DetectionJobQueueTest {
+
+    private static final String REPO_ID = "repo-1";
+
+    private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+    private final DetectionJob job = DetectionJob.builder()
+            .id("job-1")
+            .repoId(REPO_ID)
+            .vcsProvider("github")
+            .state(DetectionJobState.DONE)
+            .build();
+    private DetectionJobQueue queue;
+
+    @BeforeEach
+    void setUp() {
+        AsyncTaskExecutor executor = mock(AsyncTaskExecutor.class);
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        }).when(executor).execute(any(Runnable.class));
+        ExecutorRegistry executorRegistry = mock(ExecutorRegistry.class);
+        when(executorRegistry.concurrencyLimit("detection")).thenReturn(1);
+        queue = new DetectionJobQueue(mongoTemplate, mock(RepoStateRepository.class), executor,
+                executorRegistry, new SimpleMeterRegistry());
+
+        when(mongoTemplate.upsert(any(Query.class), any(Update.class), eq(DetectionJob.class))).thenAnswer(invocation -> {
+            if (job.getState() != DetectionJobState.DONE && job.getState() != DetectionJobState.FAILED) {
+                throw new DuplicateKeyException("repoId");
+            }
+            apply(invocation.getArgument(1));
+            return UpdateResult.acknowledged(1, 1L, null);
+        });
+        when(mongoTemplate.exists(any(Query.class), eq(DetectionJob.class)))
+                .thenAnswer(invocation -> job.getState() == DetectionJobState.PENDING);
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(DetectionJob.class))).thenAnswer(invocation -> {
+            if (job.getState() != DetectionJobState.PENDING) {
+                return null;
+            }
+            apply(invocation.getArgument(1));
+            return DetectionJob.builder().id(job.getId()).repoId(REPO_ID).vcsProvider("github")
+                    .attempts(job.getAttempts()).build();
+        });
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(DetectionJob.class)))
+                .thenAnswer(invocation -> {
+                    boolean matched = matches(((Query) invocation.getArgument(0)).getQueryObject());
+                    if (matched) {
+                        apply(invocation.getArgument(1));
+                    }
+                    return UpdateResult.acknowledged(matched ? 1 : 0, matched ? 1L : 0L, null);
+                });
+    }
+
+    @Test
+    void repoQueuedDuringDetectionRunsAgain() {
+        AtomicInteger runs = new AtomicInteger();
+        queue.register("github", detectionJob -> {
+            // A repo sync re-queues the repo while its first detection is still running
+            if (runs.incrementAndGet() == 1) {
+                queue.enqueue("github", REPO_ID, null);
+                assertThat(job.isRerun()).isTrue();
+            }
+        });
+
+        queue.enqueue("github", REPO_ID, null);
+        queue.poll();
+
+        assertThat(runs).hasValue(2);
+        assertThat(job.getState()).isEqualTo(DetectionJobState.DONE);
+        assertThat(job.isRerun()).isFalse();
+    }
+
+    @Test
+    void jobNotQueuedAgainFinishesOnce() {
+        AtomicInteger runs = new AtomicInteger();
+        queue.register("github", detectionJob -> runs.incrementAndGet());
+
+        queue.enqueue("github", REPO_ID, null);
+        queue.poll();
+
+        assertThat(runs).hasValue(1);
+        assertThat(job.getState()).isEqualTo(DetectionJobState.DONE);
+    }
+
+    @Test
+    void pendingJobIsLeftAlone() {
+        job.setState(DetectionJobState.PENDING);
+
+        queue.enqueue("github", REPO_ID, null);
+
+        assertThat(job.getState()).isEqualTo(DetectionJobState.PENDING);
+        assertThat(job.isRerun()).isFalse();
+    }
+
+    // Lease owner and deadlines are not tracked; state and the rerun flag are what the queue decides on
+    private boolean matches(Document query) {
+        if (job.getState() != DetectionJobState.RUNNING) {
+            return false;
+        }
+        Object rerun = query.get("rerun");
+        if (rerun instanceof Document condition) {
+            return !Boolean.TRUE.equals(condition.get("$ne")) || !job.isRerun();
+        }
+        return rerun == null || rerun.equals(job.isRerun());
+    }
+
+    private void apply(Update update) {
+        Document set = (Document) update.getUpdateObject().get("$set");
+        if (set.containsKey("state")) {
+            job.setState((DetectionJobState) set.get("state"));
+        }
+        if (set.containsKey("rerun")) {
+            job.setRerun((Boolean) set.get("rerun"));
+        }
+        if (set.containsKey("attempts")) {
+            job.setAttempts((Integer) set.get("attempts"));
+        }
+        Document inc = (Document) update.getUpdateObject().get("$inc");
+        if (inc != null && inc.containsKey("attempts")) {
+            job.setAttempts(job.getAttempts() + ((Number) inc.get("attempts")).intValue());
+        }
+    }
+}
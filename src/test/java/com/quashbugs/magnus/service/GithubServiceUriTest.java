@@ -0,0 +1,20 @@
+package com.quashbugs.magnus.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GithubServiceUriTest {
+
+    @Test
+    void branchNameIsEncodedAsSinglePathSegment() {
+        assertThat(GithubService.githubRepoUri("/branches/{branch}", "acme", "app", "feature/a#b%c").toString())
+                .isEqualTo("https://api.github.com/repos/acme/app/branches/feature%2Fa%23b%25c");
+    }
+
+    @Test
+    void queryOfTemplateIsKept() {
+        assertThat(GithubService.githubRepoUri("/git/trees/{treeish}?recursive=1", "acme", "app", "release/1.0").toString())
+                .isEqualTo("https://api.github.com/repos/acme/app/git/trees/release%2F1.0?recursive=1");
+    }
+}
@@ -0,0 +1,249 @@
+package com.quashbugs.magnus.service;
+
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import com.quashbugs.magnus.dto.MobileProjectInfoDTO;
+import com.quashbugs.magnus.dto.RepoFile;
+import com.quashbugs.magnus.model.MobileDetectorService;
+import com.quashbugs.magnus.model.RepoFileIndex;
+import com.quashbugs.magnus.model.RepoFileTree;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that replaying pushes onto the file index gives the same result as detecting the full
+ * tree after the push. The mocked MongoTemplate keeps one repo's index and trees in memory.
+ */
+class RepoFileIndexServiceTest {
+
+    private static final String REPO_ID = "repo-1";
+
+    // Paths that move the score of every platform, plus some that do not
+    private static final String[] PATHS = {
+            "app/src/main/AndroidManifest.xml", "app/src/main/java/com/acme/Main.java",
+            "app/src/main/kotlin/com/acme/Main.kt", "build.gradle", "app/build.gradle.kts", "gradlew", "gradlew.bat",
+            "app/src/main/res/values/strings.xml", "a/One.java", "a/Two.kt", "pubspec.yaml", "app/lib/main.dart",
+            "Runner.xcodeproj", "ios/Runner/Info.plist", "ios/Runner/AppDelegate.swift", "App.swift",
+            "ios/Views/Home.swift", "s/a.swift", "Main.storyboard", "package.json", "App.js", "App.tsx",
+            "android/app/build.gradle", "ios/Podfile", "src/one.js", "src/three.tsx", "src/components/Button.tsx",
+            "d/a.dart", "d/b.dart", "app/lib/widgets/w.dart", "app/test/widget_test.dart", ".metadata",
+            "README.md", "docs/index.html", "src/main.py", "Makefile", ".gitignore", "lib/main.dart"
+    };
+
+    private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+    private final MobileDetectorService detector = new MobileDetectorService();
+    private final RepoFileIndexService service = new RepoFileIndexService(mongoTemplate, detector);
+    private final Map<String, RepoFileTree> trees = new HashMap<>();
+    private RepoFileIndex index;
+
+    @BeforeEach
+    void setUp() {
+        when(mongoTemplate.upsert(any(Query.class), any(Update.class), eq(RepoFileIndex.class))).thenAnswer(invocation -> {
+            Document query = ((Query) invocation.getArgument(0)).getQueryObject();
+            if (index != null && !Objects.equals(query.get("commitSha"), index.getCommitSha())) {
+                throw new DuplicateKeyException(REPO_ID);
+            }
+            Document set = (Document) ((Update) invocation.getArgument(1)).getUpdateObject().get("$set");
+            index = RepoFileIndex.builder()
+                    .id(REPO_ID)
+                    .commitSha((String) set.get("commitSha"))
+                    .treeSha((String) set.get("treeSha"))
+                    .clauseCounts((int[]) set.get("clauseCounts"))
+                    .ruleSetFingerprint((String) set.get("ruleSetFingerprint"))
+                    .build();
+            return UpdateResult.acknowledged(1, 1L, null);
+        });
+        when(mongoTemplate.findById(REPO_ID, RepoFileIndex.class)).thenAnswer(invocation -> index);
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(RepoFileIndex.class))).thenAnswer(invocation -> {
+            Document query = ((Query) invocation.getArgument(0)).getQueryObject();
+            if (index == null || !query.get("commitSha").equals(index.getCommitSha())) {
+                return UpdateResult.acknowledged(0, 0L, null);
+            }
+            Document set = (Document) ((Update) invocation.getArgument(1)).getUpdateObject().get("$set");
+            index.setCommitSha((String) set.get("commitSha"));
+            index.setTreeSha((String) set.get("treeSha"));
+            index.setClauseCounts((int[]) set.get("clauseCounts"));
+            index.setRuleSetFingerprint((String) set.get("ruleSetFingerprint"));
+            return UpdateResult.acknowledged(1, 1L, null);
+        });
+
+        when(mongoTemplate.findOne(any(Query.class), eq(RepoFileTree.class)))
+                .thenAnswer(invocation -> matchingTree(invocation.getArgument(0)));
+        when(mongoTemplate.exists(any(Query.class), eq(RepoFileTree.class)))
+                .thenAnswer(invocation -> matchingTree(invocation.getArgument(0)) != null);
+        when(mongoTemplate.insert(any(RepoFileTree.class))).thenAnswer(invocation -> {
+            RepoFileTree tree = invocation.getArgument(0);
+            if (trees.putIfAbsent(tree.getTreeSha(), tree) != null) {
+                throw new DuplicateKeyException(tree.getTreeSha());
+            }
+            return tree;
+        });
+        when(mongoTemplate.remove(any(Query.class), eq(RepoFileTree.class))).thenAnswer(invocation -> {
+            RepoFileTree tree = matchingTree(invocation.getArgument(0));
+            if (tree != null) {
+                trees.remove(tree.getTreeSha());
+            }
+            return DeleteResult.acknowledged(tree != null ? 1 : 0);
+        });
+        when(mongoTemplate.find(any(Query.class), eq(RepoFileTree.class))).thenReturn(List.of());
+    }
+
+    @Test
+    void mergeCommitRepeatingBranchChangesMatchesFullDetection() {
+        Set<String> tree = new LinkedHashSet<>(List.of("README.md", "src/main.py", "Makefile", "pubspec.yaml"));
+        service.rebuild(REPO_ID, "main", null, "c0", "t0", tree);
+
+        // A feature branch adds the Flutter sources and drops the README; the merge commit's diff
+        // against the first parent lists the same paths again
+        List<RepoFileIndexService.CommitChanges> commits = List.of(
+                new RepoFileIndexService.CommitChanges(List.of("app/lib/main.dart", "d/a.dart"), List.of()),
+                new RepoFileIndexService.CommitChanges(List.of("android/app/build.gradle", "ios/Podfile"), List.of("README.md")),
+                new RepoFileIndexService.CommitChanges(List.of("docs/index.html"), List.of()),
+                new RepoFileIndexService.CommitChanges(
+                        List.of("app/lib/main.dart", "d/a.dart", "android/app/build.gradle", "ios/Podfile"),
+                        List.of("README.md")));
+        commits.forEach(commit -> {
+            tree.removeAll(commit.removed());
+            tree.addAll(commit.added());
+        });
+
+        Optional<MobileProjectInfoDTO> replayed = service.applyPush(REPO_ID, "c0", "c1", "t1", commits);
+
+        assertThat(replayed).contains(detector.analyzeMobileProject(files(tree)));
+        assertThat(replayed.get().isMobile()).isTrue();
+    }
+
+    @Test
+    void addedThenRemovedInOnePushMatchesFullDetection() {
+        Set<String> tree = new LinkedHashSet<>(List.of("app/src/main/AndroidManifest.xml", "build.gradle", "gradlew"));
+        service.rebuild(REPO_ID, "main", null, "c0", "t0", tree);
+
+        List<RepoFileIndexService.CommitChanges> commits = List.of(
+                new RepoFileIndexService.CommitChanges(List.of("app/src/main/java/com/acme/Main.java"), List.of()),
+                new RepoFileIndexService.CommitChanges(List.of(), List.of("app/src/main/java/com/acme/Main.java")),
+                new RepoFileIndexService.CommitChanges(List.of(), List.of("app/src/main/java/com/acme/Main.java")),
+                new RepoFileIndexService.CommitChanges(List.of("gradlew"), List.of()));
+        commits.forEach(commit -> {
+            tree.removeAll(commit.removed());
+            tree.addAll(commit.added());
+        });
+
+        assertThat(service.applyPush(REPO_ID, "c0", "c1", "t1", commits))
+                .contains(detector.analyzeMobileProject(files(tree)));
+    }
+
+    @Test
+    void randomPushesMatchFullDetection() {
+        Random random = new Random(20240611L);
+        for (int round = 0; round < 200; round++) {
+            trees.clear();
+            index = null;
+            Set<String> tree = new LinkedHashSet<>();
+            for (int i = random.nextInt(15); i > 0; i--) {
+                tree.add(PATHS[random.nextInt(PATHS.length)]);
+            }
+            service.rebuild(REPO_ID, "main", null, "c0", "t0", tree);
+
+            for (int push = 1; push <= 5; push++) {
+                List<RepoFileIndexService.CommitChanges> commits = randomCommits(random, tree);
+                Optional<MobileProjectInfoDTO> replayed =
+                        service.applyPush(REPO_ID, "c" + (push - 1), "c" + push, "t" + push, commits);
+                assertThat(replayed)
+                        .as("round %d push %d, tree %s", round, push, tree)
+                        .contains(detector.analyzeMobileProject(files(tree)));
+            }
+        }
+    }
+
+    @Test
+    void replayedTreeIsNotServedAsListing() {
+        service.rebuild(REPO_ID, "main", null, "c0", "t0", List.of("pubspec.yaml"));
+        service.applyPush(REPO_ID, "c0", "c1", "t1",
+                List.of(new RepoFileIndexService.CommitChanges(List.of("lib/main.dart"), List.of())));
+
+        assertThat(service.loadTree(REPO_ID, "t0")).contains(List.of("pubspec.yaml"));
+        assertThat(service.loadTree(REPO_ID, "t1")).isEmpty();
+        // The next push still starts from the derived tree
+        assertThat(service.applyPush(REPO_ID, "c1", "c2", "t2",
+                List.of(new RepoFileIndexService.CommitChanges(List.of("d/a.dart"), List.of())))).isPresent();
+    }
+
+    @Test
+    void listingDoesNotReplaceIndexMovedOnMeanwhile() {
+        service.rebuild(REPO_ID, "main", null, "c0", "t0", List.of("README.md"));
+        // A detection run read the index at c0 and listed c1 while a push moved the index to c2
+        service.applyPush(REPO_ID, "c0", "c2", "t2",
+                List.of(new RepoFileIndexService.CommitChanges(List.of("pubspec.yaml", "lib/main.dart"), List.of())));
+
+        assertThat(service.rebuild(REPO_ID, "main", "c0", "c1", "t1", List.of("README.md"))).isEmpty();
+        assertThat(index.getCommitSha()).isEqualTo("c2");
+        assertThat(service.rebuild(REPO_ID, "main", "c2", "c3", "t3", List.of("README.md"))).isPresent();
+    }
+
+    // Each commit adds and removes a few paths; now and then one repeats earlier changes, like a merge
+    private static List<RepoFileIndexService.CommitChanges> randomCommits(Random random, Set<String> tree) {
+        List<RepoFileIndexService.CommitChanges> commits = new ArrayList<>();
+        for (int c = random.nextInt(4) + 1; c > 0; c--) {
+            List<String> added = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            if (random.nextInt(4) == 0 && !commits.isEmpty()) {
+                RepoFileIndexService.CommitChanges earlier = commits.get(random.nextInt(commits.size()));
+                earlier.added().stream().filter(tree::contains).forEach(added::add);
+                earlier.removed().stream().filter(path -> !tree.contains(path)).forEach(removed::add);
+            }
+            for (int i = random.nextInt(4); i > 0; i--) {
+                String path = PATHS[random.nextInt(PATHS.length)];
+                if (tree.contains(path)) {
+                    removed.add(path);
+                } else {
+                    added.add(path);
+                }
+            }
+            tree.removeAll(removed);
+            tree.addAll(added);
+            commits.add(new RepoFileIndexService.CommitChanges(added, removed));
+        }
+        return commits;
+    }
+
+    private RepoFileTree matchingTree(Query query) {
+        Document criteria = query.getQueryObject();
+        RepoFileTree tree = trees.get((String) criteria.get("treeSha"));
+        if (tree == null) {
+            return null;
+        }
+        Object derived = criteria.get("derived");
+        if (derived instanceof Document condition) {
+            return tree.isDerived() == Boolean.TRUE.equals(condition.get("$ne")) ? null : tree;
+        }
+        return derived == null || derived.equals(tree.isDerived()) ? tree : null;
+    }
+
+    private static List<RepoFile> files(Collection<String> paths) {
+        return paths.stream()
+                .map(path -> new RepoFile(path.substring(path.lastIndexOf('/') + 1), path, "file"))
+                .toList();
+    }
+}
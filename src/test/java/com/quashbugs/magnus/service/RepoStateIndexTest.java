@@ -0,0 +1,157 @@
+package com.quashbugs.magnus.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.quashbugs.magnus.dto.RepoStatusDTO;
+import com.quashbugs.magnus.model.Repo;
+import com.quashbugs.magnus.model.RepoState;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RepoStateIndexTest {
+
+    private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+    // What the repos collection holds, as other nodes see it
+    private final Map<String, Repo> stored = new HashMap<>();
+    private long counter;
+    private RepoStateIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = new RepoStateIndex(mongoTemplate, mock(ClusterEventBus.class), new ObjectMapper());
+        ReflectionTestUtils.setField(index, "maxCachedStatuses", 10000);
+        ReflectionTestUtils.setField(index, "cacheTtlSeconds", 600L);
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class),
+                eq(Document.class), anyString())).thenAnswer(invocation -> {
+            Update update = invocation.getArgument(1);
+            counter += ((Number) ((Document) update.getUpdateObject().get("$inc")).get("seq")).longValue();
+            return new Document("_id", "stateVersion").append("seq", counter);
+        });
+        when(mongoTemplate.upsert(any(Query.class), any(Update.class), anyString())).thenAnswer(invocation -> {
+            Update update = invocation.getArgument(1);
+            counter = Math.max(counter, ((Number) ((Document) update.getUpdateObject().get("$max")).get("seq")).longValue());
+            return null;
+        });
+        when(mongoTemplate.find(any(Query.class), eq(Repo.class))).thenAnswer(invocation -> {
+            Document criteria = (Document) ((Query) invocation.getArgument(0)).getQueryObject().get("_id");
+            List<Repo> found = new ArrayList<>();
+            ((Collection<?>) criteria.get("$in")).forEach(id -> {
+                if (stored.containsKey(id)) {
+                    found.add(stored.get(id));
+                }
+            });
+            return found;
+        });
+    }
+
+    @Test
+    void savedRepoIsPublishedWithCounterVersionNotItsOwn() {
+        // The entity was loaded at version 3 and saved while the stored repo had moved to 7
+        when(mongoTemplate.findOne(any(Query.class), eq(Repo.class))).thenReturn(repo("repo-1", RepoState.FETCHING, 7));
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(Repo.class)))
+                .thenAnswer(invocation -> store(repo("repo-1", RepoState.ANALYZING, versionSetBy(invocation.getArgument(1)))));
+
+        index.refresh("repo-1");
+        index.refresh("repo-1");
+
+        List<RepoStatusDTO> changed = index.changedSince(Map.of("repo-1", 8L));
+        assertThat(changed).singleElement().satisfies(status -> {
+            assertThat(status.getStateVersion()).isEqualTo(9);
+            assertThat(status.getState()).isEqualTo(RepoState.ANALYZING);
+        });
+    }
+
+    @Test
+    void counterCatchesUpWhenStoredVersionIsAhead() {
+        when(mongoTemplate.findOne(any(Query.class), eq(Repo.class)))
+                .thenReturn(repo("repo-1", RepoState.FETCHING, 0))
+                .thenReturn(repo("repo-1", RepoState.FETCHING, 20));
+        // The first version handed out is not above the stored one, so the conditional write misses
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(Repo.class)))
+                .thenReturn(null)
+                .thenAnswer(invocation -> store(repo("repo-1", RepoState.COMPATIBLE, versionSetBy(invocation.getArgument(1)))));
+
+        index.refresh("repo-1");
+
+        assertThat(index.changedSince(Map.of("repo-1", 20L)))
+                .singleElement()
+                .satisfies(status -> assertThat(status.getStateVersion()).isEqualTo(21));
+    }
+
+    @Test
+    void writeOnAnotherNodeIsSeenWithoutClusterBus() {
+        store(repo("repo-1", RepoState.FETCHING, 5));
+        assertThat(index.changedSince(Map.of("repo-1", 5L))).isEmpty();
+
+        store(repo("repo-1", RepoState.COMPATIBLE, 9));
+
+        assertThat(index.changedSince(Map.of("repo-1", 5L)))
+                .singleElement()
+                .satisfies(status -> assertThat(status.getState()).isEqualTo(RepoState.COMPATIBLE));
+    }
+
+    @Test
+    void longPollIsWokenByPollingStoreWithoutClusterBus() {
+        store(repo("repo-1", RepoState.FETCHING, 5));
+        List<List<RepoStatusDTO>> answers = new ArrayList<>();
+        Runnable cancel = index.awaitChanges(Map.of("repo-1", 5L), answers::add);
+        index.pollWaitingRepos();
+        assertThat(answers).isEmpty();
+
+        store(repo("repo-1", RepoState.ANALYZING, 6));
+        index.pollWaitingRepos();
+        index.pollWaitingRepos();
+
+        assertThat(answers).singleElement().satisfies(changed ->
+                assertThat(changed).singleElement().satisfies(status -> assertThat(status.getStateVersion()).isEqualTo(6)));
+        cancel.run();
+    }
+
+    @Test
+    void leastRecentlyReadStatusesAreEvictedOverLimit() throws InterruptedException {
+        ReflectionTestUtils.setField(index, "maxCachedStatuses", 2);
+        for (int i = 1; i <= 3; i++) {
+            store(repo("repo-" + i, RepoState.FETCHING, i));
+            index.changedSince(Map.of("repo-" + i, 0L));
+            Thread.sleep(2);
+        }
+        index.changedSince(Map.of("repo-1", 1L));
+
+        index.evictIdleStatuses();
+
+        assertThat(index.cachedStatusCount()).isEqualTo(2);
+        // The evicted repo is read again from Mongo on its next poll
+        assertThat(index.changedSince(Map.of("repo-2", 0L))).hasSize(1);
+    }
+
+    private Repo store(Repo repo) {
+        stored.put(repo.getId(), repo);
+        return repo;
+    }
+
+    private static long versionSetBy(Update update) {
+        return ((Number) ((Document) update.getUpdateObject().get("$set")).get("stateVersion")).longValue();
+    }
+
+    private static Repo repo(String id, RepoState state, long version) {
+        return Repo.builder().id(id).name(id).state(state).stateVersion(version).build();
+    }
+}
@@ -0,0 +1,116 @@
+package com.quashbugs.magnus.webhook;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.quashbugs.magnus.model.User;
+import com.quashbugs.magnus.service.ClusterEventBus;
+import com.quashbugs.magnus.service.MembershipService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RepoStatusWebSocketHandlerTest {
+
+    private final User user = User.builder().id("user-1").build();
+    private final MembershipService membershipService = mock(MembershipService.class);
+    private final List<Runnable> tasks = new ArrayList<>();
+    private RepoStatusWebSocketHandler handler;
+
+    @BeforeEach
+    void setUp() {
+        Executor executor = tasks::add;
+        handler = new RepoStatusWebSocketHandler(mock(ClusterEventBus.class), membershipService,
+                new ObjectMapper(), executor);
+        when(membershipService.isMember(user, "org-1")).thenReturn(true);
+    }
+
+    @Test
+    void messagesOfOneSessionAreSentInOrder() throws Exception {
+        List<String> received = new ArrayList<>();
+        WebSocketSession session = session("s1", received);
+        handler.afterConnectionEstablished(session);
+
+        for (int i = 0; i < 200; i++) {
+            handler.sendMessageToClients("m" + i);
+        }
+        // However many sends were queued, one drain at a time runs for the session
+        assertThat(tasks).hasSize(1);
+        runTasks();
+
+        assertThat(received).hasSize(200);
+        for (int i = 0; i < 200; i++) {
+            assertThat(received.get(i)).isEqualTo("m" + i);
+        }
+    }
+
+    @Test
+    void topicOfAnotherOrganisationIsNotJoined() throws Exception {
+        List<String> received = new ArrayList<>();
+        WebSocketSession session = session("s1", received);
+        handler.afterConnectionEstablished(session);
+
+        handler.handleTextMessage(session, subscribe("org:org-2"));
+        handler.handleTextMessage(session, subscribe("anything"));
+        handler.sendMessageToTopic("org:org-2", "secret");
+        handler.sendMessageToTopic("anything", "secret");
+        runTasks();
+
+        assertThat(received).isEmpty();
+    }
+
+    @Test
+    void failedSendRemovesSessionFromTopics() throws Exception {
+        List<String> received = new ArrayList<>();
+        WebSocketSession session = session("s1", received);
+        handler.afterConnectionEstablished(session);
+        handler.handleTextMessage(session, subscribe("org:org-1"));
+
+        handler.sendMessageToTopic("org:org-1", "first");
+        runTasks();
+        assertThat(received).containsExactly("first");
+
+        doThrow(new IOException("broken pipe")).when(session).sendMessage(any());
+        handler.sendMessageToTopic("org:org-1", "second");
+        runTasks();
+
+        handler.sendMessageToTopic("org:org-1", "third");
+        assertThat(tasks).isEmpty();
+    }
+
+    private WebSocketSession session(String id, List<String> received) throws IOException {
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn(id);
+        when(session.isOpen()).thenReturn(true);
+        when(session.getPrincipal()).thenReturn(new UsernamePasswordAuthenticationToken(user, null, List.of()));
+        doAnswer(invocation -> {
+            WebSocketMessage<?> message = invocation.getArgument(0);
+            received.add((String) message.getPayload());
+            return null;
+        }).when(session).sendMessage(any());
+        return session;
+    }
+
+    private static TextMessage subscribe(String topic) {
+        return new TextMessage("{\"action\": \"subscribe\", \"topic\": \"" + topic + "\"}");
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+}